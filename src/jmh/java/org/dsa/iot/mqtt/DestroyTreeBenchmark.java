@@ -0,0 +1,54 @@
+package org.dsa.iot.mqtt;
+
+import org.dsa.iot.dslink.node.Node;
+import org.dsa.iot.dslink.node.NodeManager;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures tearing down parts of a data tree of about 110k nodes in a
+ * single pass, the total work an unsubscribe spreads over its slices:
+ * {@code site/device/value} with 10 sites, 1000 devices per site and 10
+ * values per device.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+public class DestroyTreeBenchmark {
+
+    private static final int SITES = 10;
+    private static final int DEVICES = 1000;
+    private static final int VALUES = 10;
+
+    @Param({"#", "site0/#", "+/+/value0", "site0/device0/value0"})
+    private String filter;
+
+    private Mqtt mqtt;
+    private Node data;
+
+    @Setup(Level.Invocation)
+    public void setup() {
+        NodeManager manager = new NodeManager(null, "node");
+        data = manager.createRootNode("data").build();
+        mqtt = new Mqtt(data);
+        for (int s = 0; s < SITES; s++) {
+            Node site = data.createChild("site" + s).build();
+            for (int d = 0; d < DEVICES; d++) {
+                Node device = site.createChild("device" + d).build();
+                for (int v = 0; v < VALUES; v++) {
+                    device.createChild("value" + v).build();
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    public Node destroyTree() {
+        mqtt.destroyTree(filter, data);
+        return data;
+    }
+}
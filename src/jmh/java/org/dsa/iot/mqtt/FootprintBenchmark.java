@@ -0,0 +1,74 @@
+package org.dsa.iot.mqtt;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.openjdk.jmh.annotations.*;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Ingests distinct topics into a fresh server, either creating a data
+ * node for every topic or keeping them in the topic store. The time is
+ * that of ingesting all topics, the heap retained per topic is printed
+ * at the end of every iteration.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class FootprintBenchmark {
+
+    @Param({"false", "true"})
+    private boolean lazyNodes;
+
+    @Param({"200000"})
+    private int topics;
+
+    private String[] names;
+    private MqttMessage msg;
+    private Mqtt mqtt;
+    private long baseline;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        names = new String[topics];
+        for (int i = 0; i < topics; i++) {
+            names[i] = "site" + (i % 10) + "/device" + (i / 10) + "/value";
+        }
+        msg = new MqttMessage("21.5".getBytes(Charset.forName("UTF-8")));
+    }
+
+    @Setup(Level.Iteration)
+    public void attach() throws Exception {
+        mqtt = new StandInClient().attach("footprint", lazyNodes);
+        baseline = usedHeap();
+    }
+
+    @TearDown(Level.Iteration)
+    public void report() {
+        long retained = usedHeap() - baseline;
+        System.out.printf("%n%s: %d bytes retained per topic%n",
+                lazyNodes ? "topic store" : "data nodes", retained / topics);
+        mqtt.shutdown();
+        mqtt = null;
+    }
+
+    @Benchmark
+    public void ingest() {
+        for (String name : names) {
+            mqtt.handleMessage(name, msg);
+        }
+    }
+
+    private static long usedHeap() {
+        MemoryMXBean bean = ManagementFactory.getMemoryMXBean();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return bean.getHeapMemoryUsage().getUsed();
+    }
+}
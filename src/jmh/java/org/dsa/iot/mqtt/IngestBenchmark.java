@@ -0,0 +1,92 @@
+package org.dsa.iot.mqtt;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures applying a message to the node tree, either to a topic whose
+ * node already exists or to topics seen for the first time. Run with
+ * {@code -prof gc} to see the allocation rate per message.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class IngestBenchmark {
+
+    private static final int NEW_TOPICS = 10000;
+
+    @Param({"flat", "deep"})
+    private String shape;
+
+    private String topic;
+    private Mqtt mqtt;
+    private MqttMessage msg;
+
+    @Setup
+    public void setup() throws Exception {
+        if ("flat".equals(shape)) {
+            topic = "temperature";
+        } else {
+            topic = "plant/line1/cell4/robot2/axis3/sensor/temperature";
+        }
+        mqtt = new StandInClient().attach("server");
+
+        byte[] payload = "21.5".getBytes(Charset.forName("UTF-8"));
+        msg = new MqttMessage(payload);
+        mqtt.handleMessage(topic, msg);
+    }
+
+    @TearDown
+    public void tearDown() {
+        mqtt.shutdown();
+    }
+
+    @Benchmark
+    public void updateExistingTopic() {
+        mqtt.handleMessage(topic, msg);
+    }
+
+    /**
+     * Creates {@link #NEW_TOPICS} nodes below the topic in a server that
+     * has not seen any of them yet.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OperationsPerInvocation(NEW_TOPICS)
+    @Warmup(iterations = 5)
+    @Measurement(iterations = 20)
+    public void createNewTopics(Fresh fresh) {
+        for (int i = 0; i < NEW_TOPICS; i++) {
+            fresh.mqtt.handleMessage(fresh.topics[i], msg);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Fresh {
+
+        private String[] topics;
+        private Mqtt mqtt;
+
+        @Setup(Level.Invocation)
+        public void setup(IngestBenchmark b) throws Exception {
+            if (topics == null) {
+                topics = new String[NEW_TOPICS];
+                for (int i = 0; i < NEW_TOPICS; i++) {
+                    topics[i] = b.topic + "/" + i;
+                }
+            }
+            mqtt = new StandInClient().attach("fresh");
+        }
+
+        @TearDown(Level.Invocation)
+        public void tearDown() {
+            mqtt.shutdown();
+        }
+    }
+}
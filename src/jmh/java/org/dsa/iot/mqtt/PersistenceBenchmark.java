@@ -0,0 +1,83 @@
+package org.dsa.iot.mqtt;
+
+import org.dsa.iot.mqtt.utils.JournalPersistence;
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
+import org.eclipse.paho.client.mqttv3.MqttPersistable;
+import org.eclipse.paho.client.mqttv3.internal.MqttPersistentData;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.eclipse.paho.client.mqttv3.persist.MqttDefaultFilePersistence;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of persisting an outbound QoS 1 message and removing
+ * it once acknowledged, which is what every publish costs the client.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class PersistenceBenchmark {
+
+    @Param({"memory", "file", "journal"})
+    private String store;
+
+    @Param({"256"})
+    private int payloadSize;
+
+    private File dir;
+    private MqttClientPersistence persistence;
+    private MqttPersistable data;
+    private int id;
+
+    @Setup
+    public void setup() throws Exception {
+        dir = File.createTempFile("persistence", "");
+        if (!(dir.delete() && dir.mkdir())) {
+            throw new IOException("Failed to create " + dir);
+        }
+        if ("journal".equals(store)) {
+            persistence = new JournalPersistence(dir.getPath());
+        } else if ("file".equals(store)) {
+            persistence = new MqttDefaultFilePersistence(dir.getPath());
+        } else {
+            persistence = new MemoryPersistence();
+        }
+        persistence.open("benchmark", "tcp://localhost:1883");
+
+        byte[] header = new byte[4];
+        byte[] payload = new byte[payloadSize];
+        data = new MqttPersistentData("", header, 0, header.length,
+                                        payload, 0, payload.length);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        persistence.clear();
+        persistence.close();
+        delete(dir);
+    }
+
+    @Benchmark
+    public void putAndRemove() throws Exception {
+        String key = "s-" + (id++ & 0xFFFF);
+        persistence.put(key, data);
+        persistence.remove(key);
+    }
+
+    private static void delete(File f) {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File c : children) {
+                delete(c);
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        f.delete();
+    }
+}
@@ -0,0 +1,56 @@
+package org.dsa.iot.mqtt;
+
+import org.dsa.iot.dslink.node.value.Value;
+import org.dsa.iot.dslink.util.json.JsonObject;
+import org.dsa.iot.mqtt.utils.PayloadDecoder;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures encoding a value written from DSA and publishing it through
+ * the outbound path of a server.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class PublishBenchmark {
+
+    private static final String TOPIC = "plant/line1/sensor/setpoint";
+
+    @Param({"string", "number", "json"})
+    private String mode;
+
+    private Mqtt mqtt;
+    private PayloadDecoder.Mode encoding;
+    private Value value;
+
+    @Setup
+    public void setup() throws Exception {
+        mqtt = new StandInClient().attach("server");
+        encoding = PayloadDecoder.Mode.fromString(mode);
+        if (encoding == PayloadDecoder.Mode.NUMBER) {
+            value = new Value(21.5);
+        } else if (encoding == PayloadDecoder.Mode.JSON) {
+            JsonObject obj = new JsonObject();
+            obj.put("value", 21.5);
+            obj.put("unit", "C");
+            value = new Value(obj);
+        } else {
+            value = new Value("21.5");
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        mqtt.shutdown();
+    }
+
+    @Benchmark
+    public void encodeAndPublish() {
+        mqtt.publish(TOPIC, PayloadDecoder.encode(encoding, value), false);
+    }
+}
@@ -0,0 +1,56 @@
+package org.dsa.iot.mqtt;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures restoring the subscriptions of a server after a reconnect:
+ * enumerating the subscriptions and the data tree, then handing the
+ * topics to the client in batches.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class ResubscribeBenchmark {
+
+    @Param({"1000"})
+    private int subscriptions;
+
+    @Param({"100000"})
+    private int dataNodes;
+
+    private StandInClient client;
+    private Mqtt mqtt;
+
+    @Setup
+    public void setup() throws Exception {
+        client = new StandInClient();
+        mqtt = client.attach("server");
+        for (int i = 0; i < subscriptions; i++) {
+            mqtt.subscribe("sub" + i, "site" + i + "/+/value");
+        }
+        MqttMessage msg = new MqttMessage("1".getBytes(Charset.forName("UTF-8")));
+        int perSite = Math.max(dataNodes / Math.max(subscriptions, 1), 1);
+        for (int i = 0; i < dataNodes; i++) {
+            int site = i / perSite;
+            mqtt.handleMessage("site" + site + "/device" + i + "/value", msg);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        mqtt.shutdown();
+    }
+
+    @Benchmark
+    public long restoreSubscriptions() {
+        mqtt.restoreSubscriptions();
+        return client.getSubscribed();
+    }
+}
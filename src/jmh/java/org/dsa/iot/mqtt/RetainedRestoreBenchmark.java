@@ -0,0 +1,54 @@
+package org.dsa.iot.mqtt;
+
+import org.dsa.iot.mqtt.utils.RetainedIndex;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how long the embedded broker takes to restore its retained
+ * index on startup, which bounds how soon local subscriptions see the
+ * retained state of every device again.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+public class RetainedRestoreBenchmark {
+
+    @Param({"100000"})
+    private int topics;
+
+    @Param({"64"})
+    private int payloadSize;
+
+    private File file;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        file = File.createTempFile("retained", ".idx");
+        RetainedIndex index = new RetainedIndex();
+        byte[] payload = new byte[payloadSize];
+        for (int i = 0; i < topics; i++) {
+            String topic = "site" + (i % 10) + "/device" + (i / 10) + "/value";
+            index.put(topic, payload);
+        }
+        index.save(file);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+
+    @Benchmark
+    public RetainedIndex restore() throws Exception {
+        RetainedIndex index = new RetainedIndex();
+        index.load(file);
+        return index;
+    }
+}
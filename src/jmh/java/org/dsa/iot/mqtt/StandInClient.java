@@ -0,0 +1,117 @@
+package org.dsa.iot.mqtt;
+
+import org.dsa.iot.dslink.node.Node;
+import org.dsa.iot.dslink.node.NodeManager;
+import org.dsa.iot.dslink.node.value.Value;
+import org.dsa.iot.dslink.node.value.ValueType;
+import org.dsa.iot.dslink.util.handler.Handler;
+import org.dsa.iot.mqtt.utils.NodeUtils;
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+
+/**
+ * In-process client used by the benchmarks in place of a broker. Every
+ * operation completes on the calling thread and only the amount of work
+ * handed to it is counted.
+ */
+public class StandInClient extends MqttAsyncClient {
+
+    private long published;
+    private long publishedBytes;
+    private long subscribed;
+
+    public StandInClient() throws MqttException {
+        super("tcp://localhost:1883", "benchmark", new MemoryPersistence());
+    }
+
+    /**
+     * Creates a server whose operations all run against the client.
+     *
+     * @param name Name of the server node.
+     */
+    public Mqtt attach(String name) {
+        return attach(name, false);
+    }
+
+    /**
+     * @param name Name of the server node.
+     * @param lazyNodes Whether data nodes are only created once they are
+     *                  listed or subscribed to.
+     */
+    public Mqtt attach(String name, boolean lazyNodes) {
+        NodeManager manager = new NodeManager(null, "node");
+        Node server = manager.createRootNode(name).build();
+        server.setRoConfig("url", new Value("tcp://localhost:1883"));
+        server.setRoConfig("clientId", new Value("benchmark"));
+        server.setRoConfig("qos", new Value(0));
+        Node ingest = NodeUtils.getOrCreateFolder(server, "ingest", "Ingest");
+        NodeUtils.getOrCreateConfig(ingest, "lazyNodes", "Lazy Data Nodes",
+                ValueType.BOOL, new Value(lazyNodes), null);
+        Mqtt mqtt = new Mqtt(server) {
+            @Override
+            protected void get(Handler<MqttAsyncClient> onClientReceived) {
+                onClientReceived.handle(StandInClient.this);
+            }
+        };
+        mqtt.init();
+        mqtt.onConnected();
+        return mqtt;
+    }
+
+    public long getPublished() {
+        return published;
+    }
+
+    public long getPublishedBytes() {
+        return publishedBytes;
+    }
+
+    public long getSubscribed() {
+        return subscribed;
+    }
+
+    @Override
+    public IMqttDeliveryToken publish(String topic,
+                                      MqttMessage message,
+                                      Object userContext,
+                                      IMqttActionListener callback) {
+        published++;
+        publishedBytes += message.getPayload().length;
+        if (callback != null) {
+            callback.onSuccess(null);
+        }
+        return null;
+    }
+
+    @Override
+    public IMqttToken subscribe(String[] topicFilters,
+                                int[] qos,
+                                Object userContext,
+                                IMqttActionListener callback) {
+        subscribed += topicFilters.length;
+        if (callback != null) {
+            callback.onSuccess(null);
+        }
+        return null;
+    }
+
+    @Override
+    public IMqttToken unsubscribe(String[] topicFilters,
+                                  Object userContext,
+                                  IMqttActionListener callback) {
+        if (callback != null) {
+            callback.onSuccess(null);
+        }
+        return null;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return true;
+    }
+}
@@ -1,6 +1,7 @@
 package org.dsa.iot.mqtt;
 
 import org.dsa.iot.commons.ParameterizedAction;
+import org.dsa.iot.dslink.methods.StreamState;
 import org.dsa.iot.dslink.node.Node;
 import org.dsa.iot.dslink.node.NodeBuilder;
 import org.dsa.iot.dslink.node.Permission;
@@ -8,12 +9,17 @@ import org.dsa.iot.dslink.node.actions.Action;
 import org.dsa.iot.dslink.node.actions.ActionResult;
 import org.dsa.iot.dslink.node.actions.EditorType;
 import org.dsa.iot.dslink.node.actions.Parameter;
+import org.dsa.iot.dslink.node.actions.ResultType;
+import org.dsa.iot.dslink.node.actions.table.Table;
 import org.dsa.iot.dslink.node.value.Value;
 import org.dsa.iot.dslink.node.value.ValueType;
 import org.dsa.iot.dslink.util.handler.Handler;
+import org.dsa.iot.dslink.util.json.JsonArray;
+import org.dsa.iot.mqtt.utils.PayloadDecoder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.HashMap;
 import java.util.Map;
 
 import static org.dsa.iot.commons.ParameterizedAction.ParameterInfo;
@@ -25,6 +31,9 @@ public class Actions {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(Actions.class);
 
+    private static final String QOS_DEFAULT = "default";
+    private static final ValueType QOS_OPTIONS = ValueType.makeEnum(QOS_DEFAULT, "0", "1", "2");
+
     public static Action getAddServerAction(final Node node) {
         final ValueType vt = ValueType.STRING;
         Action a = new Action(Permission.WRITE, new Handler<ActionResult>() {
@@ -286,7 +295,7 @@ public class Actions {
                 parent.getParent().removeChild(parent);
 
                 try {
-                    mqtt.disconnect();
+                    mqtt.shutdown();
                 } catch (Exception ignored) {
                 }
             }
@@ -300,17 +309,71 @@ public class Actions {
                 Value vTopic = event.getParameter("topic", ValueType.STRING);
                 Value vValue = event.getParameter("value", ValueType.STRING);
                 Value vRetained = event.getParameter("retained", ValueType.BOOL);
+                Value vQos = event.getParameter("qos");
 
                 String topic = vTopic.getString();
                 String value = vValue.getString();
                 boolean retained = vRetained.getBool();
+                int qos = parseQos(vQos, mqtt.getQos());
 
-                mqtt.publish(topic, value, retained);
+                byte[] payload = value.getBytes(PayloadDecoder.UTF_8);
+                mqtt.publish(topic, payload, qos, retained);
             }
         });
         a.addParameter(new Parameter("topic", ValueType.STRING));
         a.addParameter(new Parameter("value", ValueType.STRING));
         a.addParameter(new Parameter("retained", ValueType.BOOL));
+        {
+            Parameter p = new Parameter("qos", QOS_OPTIONS, new Value(QOS_DEFAULT));
+            p.setDescription("QoS of the message, default uses the QoS of the server.");
+            a.addParameter(p);
+        }
+        return a;
+    }
+
+    public static Action getPublishBatchAction(final Mqtt mqtt) {
+        Action a = new Action(Permission.READ, new Handler<ActionResult>() {
+            @Override
+            public void handle(ActionResult event) {
+                Value vRows = event.getParameter("rows", ValueType.DYNAMIC);
+                Value vTimeout = event.getParameter("timeout", new Value(30));
+
+                JsonArray rows = BatchPublish.parseRows(vRows);
+                long timeout = (long) (vTimeout.getNumber().doubleValue() * 1000);
+
+                final BatchPublish batch = new BatchPublish(rows, mqtt.getQos());
+                Table table = event.getTable();
+                table.setMode(Table.Mode.APPEND);
+                event.setStreamState(StreamState.INITIALIZED);
+                event.setCloseHandler(new Handler<Void>() {
+                    @Override
+                    public void handle(Void event) {
+                        batch.cancel();
+                    }
+                });
+                table.sendReady();
+                batch.execute(mqtt, timeout, table);
+            }
+        });
+        {
+            Parameter p = new Parameter("rows", ValueType.DYNAMIC);
+            p.setEditorType(EditorType.TEXT_AREA);
+            p.setPlaceHolder("[{\"topic\": \"a/b\", \"value\": \"1\"}]");
+            String desc = "Array of objects or table with the columns topic, ";
+            desc += "value and optionally qos and retained.";
+            p.setDescription(desc);
+            a.addParameter(p);
+        }
+        {
+            Parameter p = new Parameter("timeout", ValueType.NUMBER, new Value(30));
+            p.setDescription("Seconds to wait for the batch to complete.");
+            a.addParameter(p);
+        }
+        a.addResult(new Parameter("topic", ValueType.STRING));
+        a.addResult(new Parameter("success", ValueType.BOOL));
+        a.addResult(new Parameter("latency", ValueType.NUMBER));
+        a.addResult(new Parameter("error", ValueType.STRING));
+        a.setResultType(ResultType.STREAM);
         return a;
     }
 
@@ -323,7 +386,19 @@ public class Actions {
 
                 String name = vName.getString();
                 String topic = vTopic.getString();
-                mqtt.subscribe(name, topic);
+
+                Map<String, Value> options = new HashMap<>();
+                for (String option : Subscription.OPTIONS) {
+                    Value v = event.getParameter(option);
+                    if (v != null) {
+                        options.put(option, v);
+                    }
+                }
+                int qos = parseQos(options.remove("qos"), -1);
+                if (qos >= 0) {
+                    options.put("qos", new Value(qos));
+                }
+                mqtt.subscribe(name, topic, options);
             }
         });
         a.addParameter(new Parameter("name", ValueType.STRING));
@@ -332,9 +407,84 @@ public class Actions {
             p.setPlaceHolder("+/path/topics/#");
             a.addParameter(p);
         }
+        {
+            ValueType type = ValueType.makeEnum(PayloadDecoder.Mode.names());
+            Parameter p = new Parameter("decode", type, new Value("string"));
+            String desc =
+                "string: Payloads are stored as text.\n" +
+                "auto: The type is inferred once per topic from its payloads.\n" +
+                "number: Payloads are parsed as numbers.\n" +
+                "bool: Payloads of true, false, 1 or 0 are parsed as booleans.\n" +
+                "json: Payloads are parsed as JSON objects or arrays.\n" +
+                "base64: Binary payloads are stored base64 encoded.";
+            p.setDescription(desc);
+            a.addParameter(p);
+        }
+        {
+            Parameter p = new Parameter("expandJson", ValueType.BOOL, new Value(false));
+            String desc = "Expands JSON objects and arrays into child nodes of "
+                    + "the topic. Only fields whose values changed are updated.";
+            p.setDescription(desc);
+            a.addParameter(p);
+        }
+        {
+            Parameter p = new Parameter("dedup", ValueType.BOOL, new Value(false));
+            p.setDescription("Drops payloads identical to the last one of the topic");
+            a.addParameter(p);
+        }
+        {
+            Parameter p = new Parameter("deadband", ValueType.NUMBER, new Value(0));
+            String desc = "Drops numeric payloads that changed less than the "
+                    + "deadband since the last update of the topic, 0 disables it";
+            p.setDescription(desc);
+            a.addParameter(p);
+        }
+        {
+            Parameter p = new Parameter("minInterval", ValueType.NUMBER, new Value(0));
+            String desc = "Minimum time in milliseconds between updates of a "
+                    + "topic, 0 disables it";
+            p.setDescription(desc);
+            a.addParameter(p);
+        }
+        {
+            Parameter p = new Parameter("conflate", ValueType.NUMBER, new Value(0));
+            String desc = "Interval in milliseconds at which only the latest "
+                    + "payload of each topic is applied, 0 disables it";
+            p.setDescription(desc);
+            a.addParameter(p);
+        }
+        {
+            Parameter p = new Parameter("qos", QOS_OPTIONS, new Value(QOS_DEFAULT));
+            String desc = "QoS to subscribe with, default uses the QoS of the "
+                    + "server. Filters covered by a subscription with a lower "
+                    + "QoS are subscribed to separately.";
+            p.setDescription(desc);
+            a.addParameter(p);
+        }
+        {
+            Parameter p = new Parameter("ignoreRetained", ValueType.BOOL, new Value(false));
+            p.setDescription("Drops retained messages, only live messages update topics");
+            a.addParameter(p);
+        }
         return a;
     }
 
+    /**
+     * @param v QoS parameter, either a level or {@link #QOS_DEFAULT}.
+     * @param def QoS used when no level is given.
+     */
+    private static int parseQos(Value v, int def) {
+        String s = v == null ? null : v.getString();
+        if (s == null || QOS_DEFAULT.equals(s)) {
+            return def;
+        }
+        try {
+            return Math.min(Math.max(Integer.parseInt(s), 0), 2);
+        } catch (NumberFormatException e) {
+            return def;
+        }
+    }
+
     public static Action getUnsubscribeAction(final Mqtt mqtt,
                                               final String name) {
         return new Action(Permission.READ, new Handler<ActionResult>() {
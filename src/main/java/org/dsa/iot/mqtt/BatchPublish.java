@@ -0,0 +1,272 @@
+package org.dsa.iot.mqtt;
+
+import org.dsa.iot.dslink.node.actions.table.Row;
+import org.dsa.iot.dslink.node.actions.table.Table;
+import org.dsa.iot.dslink.node.value.Value;
+import org.dsa.iot.dslink.util.Objects;
+import org.dsa.iot.dslink.util.handler.Handler;
+import org.dsa.iot.dslink.util.json.JsonArray;
+import org.dsa.iot.dslink.util.json.JsonObject;
+import org.dsa.iot.mqtt.utils.PayloadDecoder;
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Publishes a batch of rows in a single pipelined pass and streams the
+ * outcome and latency of every row as it completes.
+ */
+public class BatchPublish {
+
+    private final List<Entry> entries = new ArrayList<>();
+
+    /**
+     * Set once the batch timed out, rows not handed to a client by then
+     * are never sent.
+     */
+    private boolean cancelled;
+    private boolean closed;
+    private int remaining;
+    private Table table;
+    private ScheduledFuture<?> timeoutFuture;
+
+    /**
+     * @param rows JSON array of objects holding a topic, value and
+     *             optionally qos and retained.
+     * @param defQos QoS of rows that do not specify one.
+     */
+    public BatchPublish(JsonArray rows, int defQos) {
+        for (int i = 0; i < rows.size(); i++) {
+            Object o = rows.get(i);
+            Entry e = new Entry();
+            entries.add(e);
+            if (!(o instanceof JsonObject)) {
+                e.error = "Row is not an object";
+                continue;
+            }
+            JsonObject row = (JsonObject) o;
+            Object topic = row.get("topic");
+            Object value = row.get("value");
+            if (topic == null) {
+                e.error = "Missing topic";
+                continue;
+            }
+            e.topic = topic.toString();
+
+            String s = value == null ? "" : value.toString();
+            MqttMessage msg = new MqttMessage(s.getBytes(PayloadDecoder.UTF_8));
+            Object qos = row.get("qos");
+            try {
+                msg.setQos(qos instanceof Number ? ((Number) qos).intValue() : defQos);
+            } catch (IllegalArgumentException ex) {
+                e.error = "Invalid qos";
+                continue;
+            }
+            Object retained = row.get("retained");
+            msg.setRetained(retained instanceof Boolean && (Boolean) retained);
+            e.msg = msg;
+        }
+    }
+
+    /**
+     * Converts the rows parameter of the action, either a JSON array of
+     * row objects or a table with topic, value, qos and retained columns.
+     *
+     * @return Rows as an array of objects.
+     */
+    public static JsonArray parseRows(Value value) {
+        if (value == null) {
+            return new JsonArray();
+        } else if (value.getArray() != null) {
+            return value.getArray();
+        } else if (value.getMap() != null) {
+            return fromTable(value.getMap());
+        }
+        String s = value.toString().trim();
+        if (s.startsWith("{")) {
+            return fromTable(new JsonObject(s));
+        }
+        return new JsonArray(s);
+    }
+
+    private static JsonArray fromTable(JsonObject table) {
+        JsonArray columns = table.get("columns");
+        JsonArray rows = table.get("rows");
+        JsonArray out = new JsonArray();
+        if (columns == null || rows == null) {
+            return out;
+        }
+        List<String> names = new ArrayList<>();
+        for (Object col : columns) {
+            if (col instanceof JsonObject) {
+                Object name = ((JsonObject) col).get("name");
+                names.add(name == null ? null : name.toString());
+            } else {
+                names.add(String.valueOf(col));
+            }
+        }
+        for (Object o : rows) {
+            if (!(o instanceof JsonArray)) {
+                out.add(o);
+                continue;
+            }
+            JsonArray row = (JsonArray) o;
+            JsonObject obj = new JsonObject();
+            for (int i = 0; i < row.size() && i < names.size(); i++) {
+                if (names.get(i) != null) {
+                    obj.put(names.get(i), row.get(i));
+                }
+            }
+            out.add(obj);
+        }
+        return out;
+    }
+
+    /**
+     * Publishes every valid row and streams a result row for each one
+     * into the table as it completes. The table is closed once every row
+     * is reported. Rows still open after the timeout are reported as
+     * timed out, rows that could not be handed to a client by then, for
+     * instance while disconnected, are not published later on.
+     *
+     * @param mqtt Server to publish to.
+     * @param timeout Maximum time to wait in milliseconds.
+     * @param table Table of an action streaming its results.
+     */
+    public void execute(final Mqtt mqtt, long timeout, Table table) {
+        final List<Entry> valid = new ArrayList<>();
+        synchronized (this) {
+            if (cancelled) {
+                // Closed by the requester before the batch started
+                return;
+            }
+            this.table = table;
+            for (Entry e : entries) {
+                if (e.msg != null) {
+                    valid.add(e);
+                } else {
+                    report(e);
+                }
+            }
+            if (valid.isEmpty()) {
+                close();
+                return;
+            }
+            remaining = valid.size();
+            timeoutFuture = Objects.getDaemonThreadPool().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    cancel();
+                }
+            }, timeout, TimeUnit.MILLISECONDS);
+        }
+        mqtt.get(new Handler<MqttAsyncClient>() {
+            @Override
+            public void handle(MqttAsyncClient event) {
+                for (final Entry e : valid) {
+                    synchronized (BatchPublish.this) {
+                        if (e.sent || cancelled) {
+                            // Already handed to a previous client
+                            // instance or reported as not sent
+                            continue;
+                        }
+                        e.sent = true;
+                    }
+                    e.start = System.nanoTime();
+                    mqtt.publish(event, e.topic, e.msg, new IMqttActionListener() {
+                        @Override
+                        public void onSuccess(IMqttToken token) {
+                            complete(e, null);
+                        }
+
+                        @Override
+                        public void onFailure(IMqttToken token, Throwable t) {
+                            complete(e, String.valueOf(t));
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    /**
+     * Stops the batch, rows not handed to a client yet are never sent
+     * and every open row is reported.
+     */
+    public synchronized void cancel() {
+        if (cancelled) {
+            return;
+        }
+        cancelled = true;
+        for (Entry e : entries) {
+            report(e);
+        }
+        close();
+    }
+
+    private synchronized void complete(Entry e, String error) {
+        if (e.done) {
+            return;
+        }
+        e.latency = System.nanoTime() - e.start;
+        e.error = error;
+        e.done = true;
+        report(e);
+        if (--remaining == 0) {
+            close();
+        }
+    }
+
+    /**
+     * Adds the row of an entry holding its topic, success, latency in
+     * milliseconds and error, once.
+     */
+    private synchronized void report(Entry e) {
+        if (e.reported || table == null) {
+            return;
+        }
+        e.reported = true;
+        Value success = new Value(e.done && e.error == null);
+        Value latency = new Value(e.done ? e.latency / 1e6 : null);
+        Value error;
+        if (e.error != null) {
+            error = new Value(e.error);
+        } else if (!e.sent) {
+            error = new Value("Not sent, no connection");
+        } else if (!e.done) {
+            error = new Value("Timed out");
+        } else {
+            error = new Value((String) null);
+        }
+        table.addRow(Row.make(new Value(e.topic), success, latency, error));
+    }
+
+    private synchronized void close() {
+        if (closed || table == null) {
+            return;
+        }
+        closed = true;
+        if (timeoutFuture != null) {
+            timeoutFuture.cancel(false);
+        }
+        table.close();
+    }
+
+    private static class Entry {
+
+        private String topic;
+        private MqttMessage msg;
+        private boolean sent;
+        private long start;
+        private long latency;
+        private String error;
+        private boolean done;
+        private boolean reported;
+    }
+}
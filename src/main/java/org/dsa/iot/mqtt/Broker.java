@@ -1,21 +1,36 @@
 package org.dsa.iot.mqtt;
 
 import io.moquette.BrokerConstants;
+import io.moquette.interception.InterceptHandler;
 import io.moquette.server.Server;
 import io.moquette.server.config.IConfig;
 import io.moquette.server.config.MemoryConfig;
 import org.dsa.iot.dslink.node.Node;
 import org.dsa.iot.dslink.node.NodeBuilder;
+import org.dsa.iot.dslink.node.Permission;
 import org.dsa.iot.dslink.node.Writable;
+import org.dsa.iot.dslink.node.actions.Action;
+import org.dsa.iot.dslink.node.actions.ActionResult;
+import org.dsa.iot.dslink.node.actions.EditorType;
+import org.dsa.iot.dslink.node.actions.Parameter;
 import org.dsa.iot.dslink.node.value.Value;
 import org.dsa.iot.dslink.node.value.ValuePair;
 import org.dsa.iot.dslink.node.value.ValueType;
+import org.dsa.iot.dslink.util.Objects;
 import org.dsa.iot.dslink.util.handler.Handler;
+import org.dsa.iot.mqtt.utils.LocalBridge;
+import org.dsa.iot.mqtt.utils.NodeUtils;
+import org.dsa.iot.mqtt.utils.RetainedIndex;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author Samuel Grenier
@@ -24,34 +39,304 @@ public class Broker {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(Mqtt.class);
 
+    private static final int DEFAULT_PORT = 1883;
+    private static final int DEFAULT_WEB_SOCKET_PORT = 8000;
+    private static final int DEFAULT_MAX_MESSAGE_SIZE = 8092;
+    private static final int DEFAULT_INTERCEPT_THREADS = 1;
+    private static final int DEFAULT_AUTOSAVE_INTERVAL = 30;
+
+    private static final String PERSISTENCE_MEMORY = "memory";
+    private static final String PERSISTENCE_FILE = "file";
+    private static final String RETAINED_INDEX = "retained.idx";
+
     private Server server;
+    private LocalBridge bridge;
+    private BrokerMetrics metrics;
+    private ScheduledFuture<?> autosave;
+    private boolean enabled;
+
+    private final RetainedIndex retained = new RetainedIndex();
+
+    private Node settings;
+    private Node host;
+    private Node port;
+    private Node webSocketPort;
+    private Node sslPort;
+    private Node jksPath;
+    private Node maxMessageSize;
+    private Node interceptThreads;
+    private Node epoll;
+    private Node persistence;
+    private Node storePath;
+    private Node autosaveInterval;
 
     private Broker() {
     }
 
     public synchronized void start() {
         stop();
+        enabled = true;
 
-        Properties props = new Properties();
-        props.put(BrokerConstants.WEB_SOCKET_PORT_PROPERTY_NAME, "8000");
-        final IConfig conf = new MemoryConfig(props);
+        final IConfig conf = new MemoryConfig(buildProperties());
+        restoreRetained();
         server = new Server();
+        bridge = new LocalBridge(server, retained);
+        metrics.reset();
+        List<InterceptHandler> handlers = Arrays.asList(bridge, metrics);
         try {
-            server.startServer(conf);
-        } catch (IOException e) {
-            e.printStackTrace();
+            server.startServer(conf, handlers);
+        } catch (IOException | RuntimeException e) {
+            // Stays enabled so changing the settings tries again
+            LOGGER.error("Failed to start broker", e);
+            bridge.close();
+            bridge = null;
+            server = null;
+            return;
         }
+        scheduleAutosave();
     }
 
     public synchronized void stop() {
+        enabled = false;
+        if (bridge != null) {
+            bridge.close();
+            bridge = null;
+        }
         if (server != null) {
             server.stopServer();
             server = null;
         }
+        if (autosave != null) {
+            autosave.cancel(false);
+            autosave = null;
+            saveRetained();
+        }
+    }
+
+    /**
+     * @return Bridge for servers using the local scheme, {@code null} if
+     *         the broker is not running.
+     */
+    public synchronized LocalBridge getBridge() {
+        return bridge;
+    }
+
+    /**
+     * Restarts the broker with the current settings if it is running.
+     */
+    private synchronized void restart() {
+        if (enabled) {
+            LOGGER.info("Restarting broker with new settings");
+            start();
+        }
+    }
+
+    private boolean isPersistent() {
+        return PERSISTENCE_FILE.equals(getString(persistence, PERSISTENCE_MEMORY));
+    }
+
+    private File getStoreDir() {
+        return new File(getString(storePath, "broker"));
+    }
+
+    /**
+     * Restores the retained index from the last snapshot so local
+     * subscriptions see the same retained messages as network clients
+     * after a restart.
+     */
+    private void restoreRetained() {
+        if (!isPersistent()) {
+            retained.clear();
+            return;
+        }
+        File file = new File(getStoreDir(), RETAINED_INDEX);
+        long start = System.currentTimeMillis();
+        try {
+            int count = retained.load(file);
+            long elapsed = System.currentTimeMillis() - start;
+            LOGGER.info("Restored {} retained message(s) in {}ms", count, elapsed);
+        } catch (IOException e) {
+            LOGGER.warn("Failed to restore retained messages from {}", file, e);
+            retained.clear();
+        }
+    }
+
+    private void saveRetained() {
+        if (!isPersistent()) {
+            return;
+        }
+        File file = new File(getStoreDir(), RETAINED_INDEX);
+        try {
+            retained.save(file);
+        } catch (IOException e) {
+            LOGGER.warn("Failed to save retained messages to {}", file, e);
+        }
+    }
+
+    private void scheduleAutosave() {
+        if (!isPersistent()) {
+            return;
+        }
+        int interval = NodeUtils.getInt(autosaveInterval, DEFAULT_AUTOSAVE_INTERVAL);
+        interval = Math.max(interval, 1);
+        autosave = Objects.getDaemonThreadPool().scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                saveRetained();
+            }
+        }, interval, interval, TimeUnit.SECONDS);
+    }
+
+    private Properties buildProperties() {
+        Properties props = new Properties();
+        props.put(BrokerConstants.HOST_PROPERTY_NAME, getString(host, "0.0.0.0"));
+        props.put(BrokerConstants.PORT_PROPERTY_NAME,
+                port(NodeUtils.getInt(port, DEFAULT_PORT)));
+        props.put(BrokerConstants.WEB_SOCKET_PORT_PROPERTY_NAME,
+                port(NodeUtils.getInt(webSocketPort, DEFAULT_WEB_SOCKET_PORT)));
+        props.put(BrokerConstants.NETTY_MAX_BYTES_PROPERTY_NAME,
+                String.valueOf(NodeUtils.getInt(maxMessageSize, DEFAULT_MAX_MESSAGE_SIZE)));
+        int threads = NodeUtils.getInt(interceptThreads, DEFAULT_INTERCEPT_THREADS);
+        props.put(BrokerConstants.BROKER_INTERCEPTOR_THREAD_POOL_SIZE,
+                String.valueOf(Math.max(threads, 1)));
+
+        int ssl = NodeUtils.getInt(sslPort, 0);
+        String jks = getString(jksPath, null);
+        if (ssl > 0 && jks != null && !jks.isEmpty()) {
+            char[] pass = settings.getPassword();
+            String password = pass == null ? "" : new String(pass);
+            props.put(BrokerConstants.SSL_PORT_PROPERTY_NAME, String.valueOf(ssl));
+            props.put(BrokerConstants.JKS_PATH_PROPERTY_NAME, jks);
+            props.put(BrokerConstants.KEY_STORE_PASSWORD_PROPERTY_NAME, password);
+            props.put(BrokerConstants.KEY_MANAGER_PASSWORD_PROPERTY_NAME, password);
+        }
+
+        if (isPersistent()) {
+            File store = new File(getStoreDir(), BrokerConstants.DEFAULT_PERSISTENT_PATH);
+            int interval = NodeUtils.getInt(autosaveInterval, DEFAULT_AUTOSAVE_INTERVAL);
+            props.put(BrokerConstants.PERSISTENT_STORE_PROPERTY_NAME,
+                    store.getAbsolutePath());
+            props.put(BrokerConstants.AUTOSAVE_INTERVAL_PROPERTY_NAME,
+                    String.valueOf(Math.max(interval, 1)));
+        } else {
+            props.put(BrokerConstants.PERSISTENT_STORE_PROPERTY_NAME, "");
+        }
+
+        Value v = epoll.getValue();
+        boolean useEpoll = v != null && v.getBool();
+        if (useEpoll && !isEpollAvailable()) {
+            LOGGER.warn("Epoll transport is unavailable, using NIO");
+            useEpoll = false;
+        }
+        props.put(BrokerConstants.NETTY_EPOLL_PROPERTY_NAME, String.valueOf(useEpoll));
+        return props;
+    }
+
+    /**
+     * Checks for the native transport without depending on it, it is only
+     * present when the netty epoll artifact is on the class path.
+     */
+    private static boolean isEpollAvailable() {
+        try {
+            Class<?> c = Class.forName("io.netty.channel.epoll.Epoll");
+            return (Boolean) c.getMethod("isAvailable").invoke(null);
+        } catch (Exception e) {
+            return false;
+        } catch (LinkageError e) {
+            return false;
+        }
+    }
+
+    private static String port(int port) {
+        return port > 0 ? String.valueOf(port) : BrokerConstants.DISABLED_PORT_BIND;
+    }
+
+    private static String getString(Node node, String def) {
+        Value v = node == null ? null : node.getValue();
+        return v == null || v.getString() == null ? def : v.getString();
+    }
+
+    private void initSettings(Node root) {
+        settings = NodeUtils.getOrCreateFolder(root, "brokerSettings",
+                                                "Broker Settings");
+        settings.setMetaData(this);
+        Handler<ValuePair> restart = new Handler<ValuePair>() {
+            @Override
+            public void handle(ValuePair event) {
+                restart();
+            }
+        };
+        host = NodeUtils.getOrCreateConfig(settings, "host", "Bind Host",
+                ValueType.STRING, new Value("0.0.0.0"), restart);
+        port = NodeUtils.getOrCreateConfig(settings, "port", "TCP Port",
+                ValueType.NUMBER, new Value(DEFAULT_PORT), restart);
+        webSocketPort = NodeUtils.getOrCreateConfig(settings, "webSocketPort",
+                "WebSocket Port", ValueType.NUMBER,
+                new Value(DEFAULT_WEB_SOCKET_PORT), restart);
+        sslPort = NodeUtils.getOrCreateConfig(settings, "sslPort", "SSL Port",
+                ValueType.NUMBER, new Value(0), restart);
+        jksPath = NodeUtils.getOrCreateConfig(settings, "jksPath",
+                "SSL Key Store Path", ValueType.STRING, new Value(""), restart);
+        maxMessageSize = NodeUtils.getOrCreateConfig(settings, "maxMessageSize",
+                "Max Message Size", ValueType.NUMBER,
+                new Value(DEFAULT_MAX_MESSAGE_SIZE), restart);
+        interceptThreads = NodeUtils.getOrCreateConfig(settings,
+                "interceptThreads", "Interceptor Threads", ValueType.NUMBER,
+                new Value(DEFAULT_INTERCEPT_THREADS), restart);
+        epoll = NodeUtils.getOrCreateConfig(settings, "epoll",
+                "Epoll Transport", ValueType.BOOL, new Value(false), restart);
+
+        ValueType type = ValueType.makeEnum(PERSISTENCE_MEMORY, PERSISTENCE_FILE);
+        persistence = NodeUtils.getOrCreateConfig(settings, "persistence",
+                "Persistence", type, new Value(PERSISTENCE_MEMORY), restart);
+        storePath = NodeUtils.getOrCreateConfig(settings, "storePath",
+                "Store Path", ValueType.STRING, new Value("broker"), restart);
+        autosaveInterval = NodeUtils.getOrCreateConfig(settings,
+                "autosaveInterval", "Autosave Interval (s)", ValueType.NUMBER,
+                new Value(DEFAULT_AUTOSAVE_INTERVAL), restart);
+
+        NodeBuilder b = settings.createChild("setKeyStorePassword");
+        b.setDisplayName("Set Key Store Password");
+        b.setSerializable(false);
+        Action a = new Action(Permission.CONFIG, new Handler<ActionResult>() {
+            @Override
+            public void handle(ActionResult event) {
+                Value v = event.getParameter("password");
+                String pass = v == null ? null : v.getString();
+                settings.setPassword(pass == null ? null : pass.toCharArray());
+                restart();
+            }
+        });
+        Parameter p = new Parameter("password", ValueType.STRING);
+        p.setEditorType(EditorType.PASSWORD);
+        a.addParameter(p);
+        b.setAction(a);
+        b.build();
+    }
+
+    private void initMetrics(Node root) {
+        metrics = new BrokerMetrics(root, this);
+        Objects.getDaemonThreadPool().scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (Broker.this) {
+                    if (!enabled) {
+                        return;
+                    }
+                }
+                try {
+                    metrics.update();
+                } catch (RuntimeException e) {
+                    LOGGER.debug("Failed to update broker metrics", e);
+                }
+            }
+        }, 1, 1, TimeUnit.SECONDS);
     }
 
     public static Broker init(Node root) {
         final Broker broker = new Broker();
+        broker.initSettings(root);
+        broker.initMetrics(root);
 
         Node n = root.getChild("brokerEnabled");
         if ( n == null ) {
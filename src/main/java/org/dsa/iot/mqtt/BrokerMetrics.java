@@ -0,0 +1,297 @@
+package org.dsa.iot.mqtt;
+
+import io.moquette.interception.AbstractInterceptHandler;
+import io.moquette.interception.messages.InterceptConnectMessage;
+import io.moquette.interception.messages.InterceptConnectionLostMessage;
+import io.moquette.interception.messages.InterceptDisconnectMessage;
+import io.moquette.interception.messages.InterceptPublishMessage;
+import io.moquette.interception.messages.InterceptSubscribeMessage;
+import io.moquette.interception.messages.InterceptUnsubscribeMessage;
+import org.dsa.iot.dslink.node.Node;
+import org.dsa.iot.dslink.node.value.Value;
+import org.dsa.iot.dslink.node.value.ValueType;
+import org.dsa.iot.mqtt.utils.NodeUtils;
+import org.dsa.iot.mqtt.utils.StripedCounter;
+import org.dsa.iot.mqtt.utils.TopicTrie;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Collects statistics of the embedded broker. Moquette runs interceptors
+ * on its own thread pool, so the handlers never delay the network
+ * threads. They only bump striped counters, the nodes are refreshed from
+ * those by the stats task of the broker.
+ */
+class BrokerMetrics extends AbstractInterceptHandler {
+
+    /**
+     * Maximum amount of topic prefixes tracked, publishes to any other
+     * prefix are counted under {@link #OTHER}.
+     */
+    private static final int MAX_PREFIXES = 100;
+    private static final String OTHER = "_other";
+
+    private final StripedCounter connects = new StripedCounter();
+    private final StripedCounter disconnects = new StripedCounter();
+    private final StripedCounter publishesIn = new StripedCounter();
+    private final StripedCounter publishesOut = new StripedCounter();
+    private final StripedCounter bytesIn = new StripedCounter();
+    private final StripedCounter bytesOut = new StripedCounter();
+    private final ConcurrentMap<String, StripedCounter> prefixes = new ConcurrentHashMap<>();
+
+    private final TopicTrie<String> filters = new TopicTrie<>();
+    private final Map<String, Session> sessions = new HashMap<>();
+    private int connected;
+    private int subscriptions;
+
+    private final Node folder;
+    private final Node topics;
+    private final Node clientsNode;
+    private final Node subscriptionsNode;
+    private final Node connectsNode;
+    private final Node disconnectsNode;
+    private final Node publishesInNode;
+    private final Node publishesOutNode;
+    private final Node bytesInNode;
+    private final Node bytesOutNode;
+    private final Node inRateNode;
+    private final Node outRateNode;
+    private final Map<String, Node> prefixNodes = new HashMap<>();
+    private final Map<String, Long> lastPrefix = new HashMap<>();
+
+    private long lastTime = System.currentTimeMillis();
+    private long lastIn;
+    private long lastOut;
+
+    BrokerMetrics(Node root, Broker broker) {
+        folder = NodeUtils.getOrCreateFolder(root, "brokerMetrics",
+                                                "Broker Metrics");
+        folder.setMetaData(broker);
+        clientsNode = NodeUtils.createMetric(folder, "clients",
+                "Connected Clients", ValueType.NUMBER, new Value(0));
+        subscriptionsNode = NodeUtils.createMetric(folder, "subscriptions",
+                "Subscriptions", ValueType.NUMBER, new Value(0));
+        connectsNode = NodeUtils.createMetric(folder, "connects",
+                "Connects", ValueType.NUMBER, new Value(0));
+        disconnectsNode = NodeUtils.createMetric(folder, "disconnects",
+                "Disconnects", ValueType.NUMBER, new Value(0));
+        publishesInNode = NodeUtils.createMetric(folder, "publishesIn",
+                "Publishes In", ValueType.NUMBER, new Value(0));
+        publishesOutNode = NodeUtils.createMetric(folder, "publishesOut",
+                "Publishes Out", ValueType.NUMBER, new Value(0));
+        bytesInNode = NodeUtils.createMetric(folder, "bytesIn",
+                "Bytes In", ValueType.NUMBER, new Value(0));
+        bytesOutNode = NodeUtils.createMetric(folder, "bytesOut",
+                "Bytes Out", ValueType.NUMBER, new Value(0));
+        inRateNode = NodeUtils.createMetric(folder, "publishInRate",
+                "Publish In Rate", ValueType.NUMBER, new Value(0));
+        outRateNode = NodeUtils.createMetric(folder, "publishOutRate",
+                "Publish Out Rate", ValueType.NUMBER, new Value(0));
+        topics = NodeUtils.getOrCreateFolder(folder, "topics",
+                                                "Topic Prefix Rates");
+    }
+
+    @Override
+    public String getID() {
+        return "dslink-broker-metrics";
+    }
+
+    @Override
+    public void onConnect(InterceptConnectMessage msg) {
+        connects.increment();
+        synchronized (sessions) {
+            String id = msg.getClientID();
+            Session s = sessions.get(id);
+            if (s == null) {
+                s = new Session();
+                sessions.put(id, s);
+            } else if (msg.isCleanSession()) {
+                clear(id, s);
+            }
+            s.clean = msg.isCleanSession();
+            if (!s.connected) {
+                s.connected = true;
+                connected++;
+            }
+        }
+    }
+
+    @Override
+    public void onDisconnect(InterceptDisconnectMessage msg) {
+        disconnected(msg.getClientID());
+    }
+
+    @Override
+    public void onConnectionLost(InterceptConnectionLostMessage msg) {
+        disconnected(msg.getClientID());
+    }
+
+    @Override
+    public void onSubscribe(InterceptSubscribeMessage msg) {
+        String id = msg.getClientID();
+        String filter = msg.getTopicFilter();
+        synchronized (sessions) {
+            Session s = sessions.get(id);
+            if (s == null) {
+                s = new Session();
+                sessions.put(id, s);
+            }
+            if (s.filters.add(filter)) {
+                filters.add(filter, id);
+                subscriptions++;
+            }
+        }
+    }
+
+    @Override
+    public void onUnsubscribe(InterceptUnsubscribeMessage msg) {
+        String id = msg.getClientID();
+        String filter = msg.getTopicFilter();
+        synchronized (sessions) {
+            Session s = sessions.get(id);
+            if (s != null && s.filters.remove(filter)) {
+                filters.remove(filter, id);
+                subscriptions--;
+            }
+        }
+    }
+
+    @Override
+    public void onPublish(InterceptPublishMessage msg) {
+        String topic = msg.getTopicName();
+        long bytes = msg.getPayload().readableBytes();
+        publishesIn.increment();
+        bytesIn.add(bytes);
+
+        // Deliveries are estimated from the subscriptions seen by the
+        // interceptor, Moquette does not report outgoing publishes
+        int receivers = filters.match(topic).size();
+        if (receivers > 0) {
+            publishesOut.add(receivers);
+            bytesOut.add(bytes * receivers);
+        }
+        prefixCounter(topic).increment();
+    }
+
+    /**
+     * Clears all statistics, called whenever the broker starts.
+     */
+    synchronized void reset() {
+        synchronized (sessions) {
+            for (Map.Entry<String, Session> e : sessions.entrySet()) {
+                clear(e.getKey(), e.getValue());
+            }
+            sessions.clear();
+            connected = 0;
+            subscriptions = 0;
+        }
+        connects.reset();
+        disconnects.reset();
+        publishesIn.reset();
+        publishesOut.reset();
+        bytesIn.reset();
+        bytesOut.reset();
+        prefixes.clear();
+        for (Node n : prefixNodes.values()) {
+            topics.removeChild(n);
+        }
+        prefixNodes.clear();
+        lastPrefix.clear();
+        lastTime = System.currentTimeMillis();
+        lastIn = 0;
+        lastOut = 0;
+    }
+
+    synchronized void update() {
+        long now = System.currentTimeMillis();
+        double elapsed = (now - lastTime) / 1000.0;
+        lastTime = now;
+
+        synchronized (sessions) {
+            clientsNode.setValue(new Value(connected));
+            subscriptionsNode.setValue(new Value(subscriptions));
+        }
+        connectsNode.setValue(new Value(connects.sum()));
+        disconnectsNode.setValue(new Value(disconnects.sum()));
+        long in = publishesIn.sum();
+        long out = publishesOut.sum();
+        publishesInNode.setValue(new Value(in));
+        publishesOutNode.setValue(new Value(out));
+        bytesInNode.setValue(new Value(bytesIn.sum()));
+        bytesOutNode.setValue(new Value(bytesOut.sum()));
+        if (elapsed <= 0) {
+            return;
+        }
+        inRateNode.setValue(new Value((in - lastIn) / elapsed));
+        outRateNode.setValue(new Value((out - lastOut) / elapsed));
+        lastIn = in;
+        lastOut = out;
+
+        for (Map.Entry<String, StripedCounter> e : prefixes.entrySet()) {
+            String prefix = e.getKey();
+            long count = e.getValue().sum();
+            Long last = lastPrefix.put(prefix, count);
+            double rate = (count - (last == null ? 0 : last)) / elapsed;
+
+            Node n = prefixNodes.get(prefix);
+            if (n == null) {
+                String name = "prefix" + prefixNodes.size();
+                n = NodeUtils.createMetric(topics, name, prefix,
+                                    ValueType.NUMBER, new Value(rate));
+                prefixNodes.put(prefix, n);
+            } else {
+                n.setValue(new Value(rate));
+            }
+        }
+    }
+
+    private StripedCounter prefixCounter(String topic) {
+        int i = topic.indexOf('/');
+        String prefix = i < 0 ? topic : topic.substring(0, i);
+        StripedCounter c = prefixes.get(prefix);
+        if (c != null) {
+            return c;
+        }
+        if (prefixes.size() >= MAX_PREFIXES) {
+            prefix = OTHER;
+        }
+        c = new StripedCounter();
+        StripedCounter prev = prefixes.putIfAbsent(prefix, c);
+        return prev == null ? c : prev;
+    }
+
+    private void disconnected(String id) {
+        disconnects.increment();
+        synchronized (sessions) {
+            Session s = sessions.get(id);
+            if (s == null || !s.connected) {
+                return;
+            }
+            s.connected = false;
+            connected--;
+            if (s.clean) {
+                clear(id, s);
+                sessions.remove(id);
+            }
+        }
+    }
+
+    private void clear(String id, Session s) {
+        for (String filter : s.filters) {
+            filters.remove(filter, id);
+            subscriptions--;
+        }
+        s.filters.clear();
+    }
+
+    private static class Session {
+        private final Set<String> filters = new HashSet<>();
+        private boolean connected;
+        private boolean clean;
+    }
+}
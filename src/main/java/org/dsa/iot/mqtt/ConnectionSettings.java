@@ -0,0 +1,93 @@
+package org.dsa.iot.mqtt;
+
+import org.dsa.iot.dslink.node.Node;
+import org.dsa.iot.dslink.node.value.Value;
+
+/**
+ * Immutable snapshot of the connection settings of a server. The config
+ * of the server node is only read when a snapshot is taken, which happens
+ * when the server is created and whenever it is edited.
+ */
+public final class ConnectionSettings {
+
+    private final String url;
+    private final String clientId;
+    private final String username;
+    private final char[] password;
+    private final boolean cleanSession;
+    private final int qos;
+    private final String ca;
+    private final String cert;
+    private final String privateKey;
+
+    private ConnectionSettings(Node node) {
+        this.url = getString(node, "url");
+        this.clientId = getString(node, "clientId");
+        this.username = getString(node, "user");
+        char[] pass = node.getPassword();
+        this.password = pass == null ? null : pass.clone();
+
+        Value v = node.getRoConfig("cleanSession");
+        this.cleanSession = v == null || v.getBool();
+
+        v = node.getRoConfig("qos");
+        int qos = v == null || v.getNumber() == null ? 0 : v.getNumber().intValue();
+        this.qos = Math.min(Math.max(qos, 0), 2);
+
+        this.ca = getString(node, "ca");
+        this.cert = getString(node, "cert");
+        this.privateKey = getString(node, "privKey");
+    }
+
+    /**
+     * @param node Server node holding the settings in its config.
+     * @return Snapshot of the current settings.
+     */
+    public static ConnectionSettings read(Node node) {
+        return new ConnectionSettings(node);
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public String getClientId() {
+        return clientId;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public char[] getPassword() {
+        return password == null ? null : password.clone();
+    }
+
+    public boolean getCleanSession() {
+        return cleanSession;
+    }
+
+    /**
+     * @return Default QoS of subscriptions and publishes.
+     */
+    public int getQos() {
+        return qos;
+    }
+
+    public String getCa() {
+        return ca;
+    }
+
+    public String getCert() {
+        return cert;
+    }
+
+    public String getPrivateKey() {
+        return privateKey;
+    }
+
+    private static String getString(Node node, String name) {
+        Value v = node.getRoConfig(name);
+        return v == null ? null : v.getString();
+    }
+}
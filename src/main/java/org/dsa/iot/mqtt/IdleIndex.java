@@ -0,0 +1,160 @@
+package org.dsa.iot.mqtt;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Topics of the data tree ordered by the time they were last updated,
+ * oldest first. Idle topics are found from the head of the index without
+ * walking the tree. Updates only move a topic to the tail once per
+ * {@link #TOUCH_INTERVAL}, so the ingest path rarely takes the lock and
+ * topics are evicted at most that much later than their TTL.
+ * <p>
+ * Topics found not evictable are kept aside instead of cycling through
+ * the index on every sweep. They still count toward the maximum amount of
+ * topics and are handed out again for a check once per
+ * {@link #KEEP_INTERVAL}.
+ */
+class IdleIndex {
+
+    static final long TOUCH_INTERVAL = 1000;
+    static final long KEEP_INTERVAL = 60000;
+
+    private final LinkedHashMap<String, TopicEntry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, TopicEntry> kept = new LinkedHashMap<>();
+    private volatile long ttl;
+    private volatile int maxTopics;
+
+    /**
+     * @param ttl Milliseconds a topic may go without updates, 0 disables
+     *            the TTL.
+     * @param maxTopics Maximum amount of topics kept, 0 is unbounded.
+     */
+    void configure(long ttl, int maxTopics) {
+        this.ttl = Math.max(ttl, 0);
+        this.maxTopics = Math.max(maxTopics, 0);
+        if (!isEnabled()) {
+            clear();
+        }
+    }
+
+    boolean isEnabled() {
+        return ttl > 0 || maxTopics > 0;
+    }
+
+    /**
+     * Records an update of the topic.
+     */
+    void touch(TopicEntry entry, long now) {
+        if (now - entry.indexed < TOUCH_INTERVAL) {
+            return;
+        }
+        synchronized (this) {
+            entry.indexed = now;
+            TopicEntry k = kept.get(entry.topic);
+            if (k != null) {
+                // Stays aside until its next check
+                if (k != entry) {
+                    entry.kept = k.kept;
+                    kept.put(entry.topic, entry);
+                }
+                return;
+            }
+            // Both calls move the topic to the tail in access order
+            if (entries.get(entry.topic) != entry) {
+                entries.put(entry.topic, entry);
+            }
+        }
+    }
+
+    /**
+     * Removes the oldest topics that are idle past the TTL or exceed the
+     * maximum amount of topics. Kept topics count toward the maximum but
+     * are never returned.
+     *
+     * @param limit Maximum amount of topics removed.
+     * @return Removed topics, oldest first.
+     */
+    synchronized List<TopicEntry> poll(long now, int limit) {
+        List<TopicEntry> out = new ArrayList<>();
+        long ttl = this.ttl;
+        long cutoff = ttl > 0 ? now - ttl : Long.MIN_VALUE;
+        int max = maxTopics;
+        int over = max > 0 ? entries.size() + kept.size() - max : 0;
+
+        Iterator<TopicEntry> it = entries.values().iterator();
+        while (it.hasNext() && out.size() < limit) {
+            TopicEntry e = it.next();
+            if (over <= 0 && e.indexed >= cutoff) {
+                // Every later topic was updated more recently
+                break;
+            }
+            it.remove();
+            out.add(e);
+            over--;
+        }
+        return out;
+    }
+
+    /**
+     * @return Whether the topic is still or again waiting in the index, a
+     *         polled topic is put back by its next update.
+     */
+    synchronized boolean isIndexed(TopicEntry entry) {
+        return entries.containsKey(entry.topic);
+    }
+
+    /**
+     * Keeps aside a polled topic that could not be evicted.
+     */
+    synchronized void keep(TopicEntry entry, long now) {
+        entry.kept = now;
+        kept.put(entry.topic, entry);
+    }
+
+    /**
+     * Removes the kept topics due for another check.
+     *
+     * @param limit Maximum amount of topics removed.
+     * @return Removed topics, longest kept first.
+     */
+    synchronized List<TopicEntry> pollKept(long now, int limit) {
+        List<TopicEntry> out = new ArrayList<>();
+        Iterator<TopicEntry> it = kept.values().iterator();
+        while (it.hasNext() && out.size() < limit) {
+            TopicEntry e = it.next();
+            if (now - e.kept < KEEP_INTERVAL) {
+                // Every later topic was kept more recently
+                break;
+            }
+            it.remove();
+            out.add(e);
+        }
+        return out;
+    }
+
+    /**
+     * Puts a kept topic that turned evictable back into the index, at the
+     * tail since it is not known when its node stopped being needed.
+     */
+    synchronized void release(TopicEntry entry) {
+        if (!entries.containsKey(entry.topic)) {
+            entries.put(entry.topic, entry);
+        }
+    }
+
+    synchronized boolean contains(String topic) {
+        return entries.containsKey(topic) || kept.containsKey(topic);
+    }
+
+    synchronized int size() {
+        return entries.size() + kept.size();
+    }
+
+    synchronized void clear() {
+        entries.clear();
+        kept.clear();
+    }
+}
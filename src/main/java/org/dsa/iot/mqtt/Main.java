@@ -8,7 +8,7 @@ import org.dsa.iot.dslink.node.NodeManager;
 import org.dsa.iot.dslink.node.value.Value;
 import org.dsa.iot.dslink.node.value.ValueType;
 import org.dsa.iot.dslink.util.handler.Handler;
-import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
 import org.eclipse.paho.client.mqttv3.MqttException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -41,9 +41,9 @@ public class Main extends DSLinkHandler {
         Map<String, Node> children = node.getChildren();
         if (children != null) {
             for (Node n : children.values()) {
-                Mqtt mqtt = n.getMetaData();
-                if (mqtt != null) {
-                    mqtt.disconnect();
+                Object meta = n.getMetaData();
+                if (meta instanceof Mqtt) {
+                    ((Mqtt) meta).shutdown();
                 }
             }
         }
@@ -71,22 +71,28 @@ public class Main extends DSLinkHandler {
         final NodeManager manager = dslink.getNodeManager();
         final Node node = manager.getNode(split[0]).getNode();
         final Mqtt mqtt = node.getMetaData();
-        mqtt.get(new Handler<MqttClient>() {
-            @Override
-            public void handle(MqttClient event) {
-                String topic = path.substring(node.getPath().length() + 5);
-                try {
-                    event.subscribe(topic, mqtt.getQos());
-                } catch (MqttException e) {
-                    throw new RuntimeException(e);
+        final String topic = mqtt.getTopic(path);
+        mqtt.demand();
+        if (!mqtt.isSubscribed(topic)) {
+            mqtt.get(new Handler<MqttAsyncClient>() {
+                @Override
+                public void handle(MqttAsyncClient event) {
+                    try {
+                        event.subscribe(topic, mqtt.getQos());
+                    } catch (MqttException e) {
+                        throw new RuntimeException(e);
+                    }
                 }
-            }
-        });
+            });
+        }
 
-        Node n = manager.getNode(path, true).getNode();
+        Node n = mqtt.materialize(topic);
+        if (n == null) {
+            n = manager.getNode(path, true).getNode();
+            n.setValueType(ValueType.STRING);
+            n.setValue(new Value((String) null));
+        }
         n.setSerializable(false);
-        n.setValueType(ValueType.STRING);
-        n.setValue(new Value((String) null));
         return n;
     }
 
@@ -97,7 +103,7 @@ public class Main extends DSLinkHandler {
         final NodeManager manager = dslink.getNodeManager();
         final Node node = manager.getNode(split[0]).getNode();
         final Mqtt mqtt = node.getMetaData();
-        String topic = path.substring(node.getPath().length() + 6);
+        String topic = mqtt.getTopic(path);
         mqtt.publish(topic, value.toString(), false);
     }
 
@@ -1,6 +1,5 @@
 package org.dsa.iot.mqtt;
 
-import org.dsa.iot.commons.GuaranteedReceiver;
 import org.dsa.iot.dslink.link.Linkable;
 import org.dsa.iot.dslink.node.*;
 import org.dsa.iot.dslink.node.actions.Action;
@@ -12,13 +11,32 @@ import org.dsa.iot.dslink.util.Objects;
 import org.dsa.iot.dslink.util.StringUtils;
 import org.dsa.iot.dslink.util.handler.Handler;
 import org.dsa.iot.mqtt.utils.ClientReceiver;
+import org.dsa.iot.mqtt.utils.IngestPipeline;
+import org.dsa.iot.mqtt.utils.JournalPersistence;
+import org.dsa.iot.mqtt.utils.LocalBridge;
+import org.dsa.iot.mqtt.utils.NodeUtils;
+import org.dsa.iot.mqtt.utils.PayloadDecoder;
+import org.dsa.iot.mqtt.utils.SslSocketFactoryImpl;
+import org.dsa.iot.mqtt.utils.TopicCache;
+import org.dsa.iot.mqtt.utils.TopicStore;
+import org.dsa.iot.mqtt.utils.TopicTrie;
 import org.eclipse.paho.client.mqttv3.*;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.eclipse.paho.client.mqttv3.persist.MqttDefaultFilePersistence;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.UnsupportedEncodingException;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * @author Samuel Grenier
@@ -26,20 +44,136 @@ import java.util.concurrent.ScheduledThreadPoolExecutor;
 public class Mqtt implements MqttCallback {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(Mqtt.class);
+    private static final int DEFAULT_INGEST_THREADS = 1;
+    private static final int DEFAULT_INGEST_QUEUE_SIZE = 10000;
+    private static final int DEFAULT_TOPIC_CACHE_SIZE = 100000;
+
+    /**
+     * Maximum amount of unacknowledged publishes per connection.
+     */
+    public static final int MAX_INFLIGHT = 1000;
+
+    private static final int DEFAULT_SPOOL_SIZE = 10000;
+
+    /**
+     * Maximum amount of idle topics evicted per sweep, bounds the time the
+     * tree lock is held.
+     */
+    private static final int MAX_EVICTIONS_PER_SWEEP = 10000;
+    private static final int DEFAULT_MIN_BACKOFF = 1000;
+    private static final int DEFAULT_MAX_BACKOFF = 60000;
+    private static final String PERSISTENCE_DIR = "persistence";
+    private static final String PERSISTENCE_MEMORY = "memory";
+    private static final String PERSISTENCE_JOURNAL = "journal";
+    private static final String PERSISTENCE_FILE = "file";
+
     private final Node parent;
+    private volatile ConnectionSettings settings;
     private Node status;
     private Node subs;
     private Node data;
 
-    private GuaranteedReceiver<MqttClient> clientReceiver;
+    private volatile ClientReceiver clientReceiver;
     private final Object receiverLock = new Object();
 
+    private final Object treeLock = new Object();
+    private final Teardown teardown = new Teardown(this, treeLock);
+    private final Runnable restore = new Runnable() {
+        @Override
+        public void run() {
+            restoreSubscriptions();
+        }
+    };
+    private Node teardownState;
+    private Node teardownQueued;
+    private Node teardownVisited;
+    private Node teardownRemoved;
+    private volatile IngestPipeline pipeline;
+    private final Map<String, Subscription> subscriptions = new ConcurrentHashMap<>();
+    private final TopicTrie<Subscription> filters = new TopicTrie<>();
+    private volatile TopicCache<TopicEntry> topicCache;
+    private volatile TopicStore store;
+    private final Handler<Node> listHandler = new Handler<Node>() {
+        @Override
+        public void handle(Node event) {
+            materializeChildren(event);
+        }
+    };
+    private Node ingestThreads;
+    private Node ingestQueueSize;
+    private Node topicCacheSize;
+    private Node cachedTopics;
+    private Node lazyNodes;
+    private Node storedTopics;
+    private Node ingestDepth;
+    private Node ingestDropped;
+    private Node ingestProcessed;
+    private Node[] ingestRates;
+    private long[] lastProcessed;
+    private long lastStatsTime;
+    private ScheduledFuture<?> statsFuture;
+
+    private volatile Semaphore window = new Semaphore(MAX_INFLIGHT);
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong publishFailures = new AtomicLong();
+    private Node inFlightNode;
+    private Node publishedNode;
+    private Node deliveredNode;
+    private Node publishFailuresNode;
+    private Node persistence;
+
+    private SSLSocketFactory sslFactory;
+    private String sslFingerprint;
+
+    private Node minBackoff;
+    private Node maxBackoff;
+    private Node stateNode;
+    private Node timeInStateNode;
+    private Node reconnectsNode;
+    private Node connectLatencyNode;
+
+    private volatile Startup startup;
+    private volatile boolean demanded;
+    private volatile long startupQueued;
+    private volatile long startupReleased;
+    private volatile long startupConnected;
+    private volatile long firstMessage;
+    private Node startupWaitNode;
+    private Node startupConnectNode;
+    private Node firstValueNode;
+
+    private OutboundSpool spool;
+    private Node spoolSize;
+    private Node spoolOverflowSize;
+    private Node spoolPolicy;
+    private Node spoolRate;
+    private Node spooledNode;
+    private Node spoolAgeNode;
+    private Node spoolDroppedNode;
+
+    private final IdleIndex idle = new IdleIndex();
+    private final AtomicLong evicted = new AtomicLong();
+    private ScheduledFuture<?> sweepFuture;
+    private Node idleTtl;
+    private Node idleMaxTopics;
+    private Node idleTrackedNode;
+    private Node idleEvictedNode;
+
     public Mqtt(Node parent) {
         this.parent = parent;
+        this.settings = ConnectionSettings.read(parent);
         parent.setMetaData(this);
     }
 
     public void init() {
+        initIngest();
+        initOutbound();
+        initPersistence();
+        initSpool();
+        initEviction();
+        initTeardown();
+        initConnection();
         synchronized (receiverLock) {
             clientReceiver = new ClientReceiver(this);
         }
@@ -56,11 +190,18 @@ public class Mqtt implements MqttCallback {
         child.setSerializable(false);
         child.build();
 
+        child = parent.createChild("publishBatch");
+        child.setDisplayName("Publish Batch");
+        child.setAction(Actions.getPublishBatchAction(this));
+        child.setSerializable(false);
+        child.build();
+
         child = parent.createChild("data");
         child.setDisplayName("Data");
         child.setSerializable(false);
         child.setRoConfig("preserve", new Value(true));
         data = child.build();
+        data.getListener().setOnListHandler(listHandler);
 
         child = data.createChild("clean");
         child.setSerializable(false);
@@ -70,8 +211,7 @@ public class Mqtt implements MqttCallback {
                         new Handler<ActionResult>() {
             @Override
             public void handle(ActionResult event) {
-                destroyEverything(data);
-                restoreSubscriptions();
+                tearDown("#", restore);
             }
         }));
         child.build();
@@ -98,6 +238,566 @@ public class Mqtt implements MqttCallback {
         child.setSerializable(false);
         child.setAction(Actions.getEditServerAction(this));
         child.build();
+
+        ScheduledThreadPoolExecutor stpe = Objects.getDaemonThreadPool();
+        statsFuture = stpe.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    updateStats();
+                } catch (RuntimeException e) {
+                    LOGGER.debug("Failed to update statistics", e);
+                }
+            }
+        }, 1, 1, TimeUnit.SECONDS);
+    }
+
+    private void initIngest() {
+        Node ingest = NodeUtils.getOrCreateFolder(parent, "ingest", "Ingest");
+        Handler<ValuePair> restart = new Handler<ValuePair>() {
+            @Override
+            public void handle(ValuePair event) {
+                startPipeline();
+            }
+        };
+        ingestThreads = NodeUtils.getOrCreateConfig(ingest, "threads",
+                "Worker Threads", ValueType.NUMBER,
+                new Value(DEFAULT_INGEST_THREADS), restart);
+        ingestQueueSize = NodeUtils.getOrCreateConfig(ingest, "queueSize",
+                "Queue Size", ValueType.NUMBER,
+                new Value(DEFAULT_INGEST_QUEUE_SIZE), restart);
+        topicCacheSize = NodeUtils.getOrCreateConfig(ingest, "cacheSize",
+                "Topic Cache Size", ValueType.NUMBER,
+                new Value(DEFAULT_TOPIC_CACHE_SIZE), restart);
+        ingestDepth = NodeUtils.createMetric(ingest, "queueDepth",
+                "Queue Depth", ValueType.NUMBER, new Value(0));
+        ingestDropped = NodeUtils.createMetric(ingest, "dropped",
+                "Dropped", ValueType.NUMBER, new Value(0));
+        ingestProcessed = NodeUtils.createMetric(ingest, "processed",
+                "Processed", ValueType.NUMBER, new Value(0));
+        cachedTopics = NodeUtils.createMetric(ingest, "cachedTopics",
+                "Cached Topics", ValueType.NUMBER, new Value(0));
+        lazyNodes = NodeUtils.getOrCreateConfig(ingest, "lazyNodes",
+                "Lazy Data Nodes", ValueType.BOOL, new Value(false),
+                new Handler<ValuePair>() {
+            @Override
+            public void handle(ValuePair event) {
+                configureStore();
+            }
+        });
+        storedTopics = NodeUtils.createMetric(ingest, "storedTopics",
+                "Stored Topics", ValueType.NUMBER, new Value(0));
+        configureStore();
+        startPipeline();
+    }
+
+    /**
+     * Switches between creating a node for every topic and keeping the
+     * values of topics in a {@link TopicStore} until their node is
+     * listed or subscribed to. The data tree starts over when switching
+     * at runtime.
+     */
+    private void configureStore() {
+        Value v = lazyNodes.getValue();
+        boolean lazy = v != null && v.getBool() != null && v.getBool();
+        if (lazy == (store != null)) {
+            return;
+        }
+        LOGGER.info("Data nodes of '{}' are {}", getName(),
+                        lazy ? "created lazily" : "created eagerly");
+        store = lazy ? new TopicStore() : null;
+        if (data != null) {
+            tearDown("#", restore);
+        }
+    }
+
+    private void initOutbound() {
+        Node outbound = NodeUtils.getOrCreateFolder(parent, "outbound", "Outbound");
+        outbound.setSerializable(false);
+        inFlightNode = NodeUtils.createMetric(outbound, "inFlight",
+                "In Flight", ValueType.NUMBER, new Value(0));
+        publishedNode = NodeUtils.createMetric(outbound, "published",
+                "Published", ValueType.NUMBER, new Value(0));
+        deliveredNode = NodeUtils.createMetric(outbound, "delivered",
+                "Delivered", ValueType.NUMBER, new Value(0));
+        publishFailuresNode = NodeUtils.createMetric(outbound, "failed",
+                "Failed", ValueType.NUMBER, new Value(0));
+    }
+
+    private void initTeardown() {
+        Node folder = NodeUtils.getOrCreateFolder(parent, "teardown", "Teardown");
+        folder.setSerializable(false);
+        teardownState = NodeUtils.createMetric(folder, "filter",
+                "Tearing Down", ValueType.STRING, new Value((String) null));
+        teardownQueued = NodeUtils.createMetric(folder, "queued",
+                "Queued", ValueType.NUMBER, new Value(0));
+        teardownVisited = NodeUtils.createMetric(folder, "visited",
+                "Visited Nodes", ValueType.NUMBER, new Value(0));
+        teardownRemoved = NodeUtils.createMetric(folder, "removed",
+                "Removed Nodes", ValueType.NUMBER, new Value(0));
+    }
+
+    private void initConnection() {
+        Node folder = NodeUtils.getOrCreateFolder(parent, "connection", "Connection");
+        minBackoff = NodeUtils.getOrCreateConfig(folder, "minBackoff",
+                "Min Backoff", ValueType.NUMBER,
+                new Value(DEFAULT_MIN_BACKOFF), null);
+        maxBackoff = NodeUtils.getOrCreateConfig(folder, "maxBackoff",
+                "Max Backoff", ValueType.NUMBER,
+                new Value(DEFAULT_MAX_BACKOFF), null);
+        stateNode = NodeUtils.createMetric(folder, "state",
+                "State", ValueType.STRING,
+                new Value(ClientReceiver.State.IDLE.name()));
+        timeInStateNode = NodeUtils.createMetric(folder, "timeInState",
+                "Time In State", ValueType.NUMBER, new Value(0));
+        reconnectsNode = NodeUtils.createMetric(folder, "reconnects",
+                "Reconnects", ValueType.NUMBER, new Value(0));
+        connectLatencyNode = NodeUtils.createMetric(folder, "connectLatency",
+                "Last Connect Latency", ValueType.NUMBER, new Value(0));
+        startupWaitNode = NodeUtils.createMetric(folder, "startupWait",
+                "Startup Wait", ValueType.NUMBER, new Value((Number) null));
+        startupConnectNode = NodeUtils.createMetric(folder, "startupConnect",
+                "Startup Connect", ValueType.NUMBER, new Value((Number) null));
+        firstValueNode = NodeUtils.createMetric(folder, "firstValue",
+                "Time To First Value", ValueType.NUMBER, new Value((Number) null));
+    }
+
+    /**
+     * Keeps the server from connecting until the startup releases it.
+     */
+    void holdConnection(Startup startup) {
+        this.startup = startup;
+        this.startupQueued = System.currentTimeMillis();
+        synchronized (receiverLock) {
+            if (clientReceiver != null) {
+                clientReceiver.hold();
+            }
+        }
+    }
+
+    /**
+     * @return Whether a connect attempt was started.
+     */
+    boolean releaseConnection() {
+        startupReleased = System.currentTimeMillis();
+        synchronized (receiverLock) {
+            return clientReceiver != null && clientReceiver.release();
+        }
+    }
+
+    /**
+     * Called when a DSA subscriber waits on a value of the server, moves
+     * the server ahead of the others while the link starts.
+     */
+    public void demand() {
+        demanded = true;
+        Startup startup = this.startup;
+        if (startup != null) {
+            startup.dispatch();
+        }
+    }
+
+    boolean isDemanded() {
+        return demanded;
+    }
+
+    /**
+     * Called when a connect attempt failed, the attempt is retried after
+     * the backoff.
+     */
+    public void onConnectFailed(Throwable t) {
+        Startup startup = this.startup;
+        if (startup != null) {
+            startup.done(this);
+        }
+    }
+
+    /**
+     * @return Base delay before reconnecting in milliseconds.
+     */
+    public long getMinBackoff() {
+        return Math.max(NodeUtils.getInt(minBackoff, DEFAULT_MIN_BACKOFF), 0);
+    }
+
+    /**
+     * @return Maximum delay between connect attempts in milliseconds.
+     */
+    public long getMaxBackoff() {
+        return Math.max(NodeUtils.getInt(maxBackoff, DEFAULT_MAX_BACKOFF), 0);
+    }
+
+    private void initEviction() {
+        Node folder = NodeUtils.getOrCreateFolder(parent, "eviction",
+                                                    "Idle Eviction");
+        Handler<ValuePair> configure = new Handler<ValuePair>() {
+            @Override
+            public void handle(ValuePair event) {
+                configureEviction();
+            }
+        };
+        idleTtl = NodeUtils.getOrCreateConfig(folder, "ttl",
+                "Idle TTL (s)", ValueType.NUMBER, new Value(0), configure);
+        idleMaxTopics = NodeUtils.getOrCreateConfig(folder, "maxTopics",
+                "Max Topics", ValueType.NUMBER, new Value(0), configure);
+        idleTrackedNode = NodeUtils.createMetric(folder, "tracked",
+                "Tracked Topics", ValueType.NUMBER, new Value(0));
+        idleEvictedNode = NodeUtils.createMetric(folder, "evicted",
+                "Evicted Topics", ValueType.NUMBER, new Value(0));
+        configureEviction();
+
+        ScheduledThreadPoolExecutor stpe = Objects.getDaemonThreadPool();
+        sweepFuture = stpe.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    sweepIdle();
+                } catch (RuntimeException e) {
+                    LOGGER.warn("Failed to evict idle topics", e);
+                }
+            }
+        }, IdleIndex.TOUCH_INTERVAL, IdleIndex.TOUCH_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    private void configureEviction() {
+        Value v = idleTtl.getValue();
+        double ttl = v == null || v.getNumber() == null ? 0 : v.getNumber().doubleValue();
+        int max = NodeUtils.getInt(idleMaxTopics, 0);
+        idle.configure((long) (ttl * 1000), max);
+    }
+
+    /**
+     * Removes the nodes of topics that were idle past the TTL or exceed
+     * the topic budget. Topics with a DSA subscriber and topics whose
+     * node holds the nodes of other topics are kept aside and checked
+     * again later.
+     */
+    private void sweepIdle() {
+        if (!idle.isEnabled()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        List<TopicEntry> kept = idle.pollKept(now, MAX_EVICTIONS_PER_SWEEP);
+        if (!kept.isEmpty()) {
+            synchronized (treeLock) {
+                for (TopicEntry entry : kept) {
+                    if (entry.node != null && !isAttached(entry.node)) {
+                        // Already torn down
+                        continue;
+                    }
+                    if (isPinned(entry)) {
+                        idle.keep(entry, now);
+                    } else {
+                        idle.release(entry);
+                    }
+                }
+            }
+        }
+
+        List<TopicEntry> entries = idle.poll(now, MAX_EVICTIONS_PER_SWEEP);
+        if (entries.isEmpty()) {
+            return;
+        }
+        int count = 0;
+        synchronized (treeLock) {
+            TopicStore store = this.store;
+            for (TopicEntry entry : entries) {
+                if (idle.isIndexed(entry)) {
+                    // Updated since it was polled
+                    continue;
+                }
+                Node node = entry.node;
+                if (node == null) {
+                    // Only kept in the topic store
+                    if (store != null && store.remove(entry.topic) != null) {
+                        count++;
+                    }
+                    continue;
+                }
+                if (!isAttached(node)) {
+                    // Already torn down
+                    continue;
+                }
+                if (isPinned(entry)) {
+                    idle.keep(entry, now);
+                    continue;
+                }
+                TopicCache<TopicEntry> cache = topicCache;
+                if (cache != null) {
+                    cache.remove(entry.topic);
+                }
+                if (store != null) {
+                    store.remove(entry.topic);
+                }
+                Node parent = node.getParent();
+                parent.removeChild(node);
+                removeEmptyParents(parent);
+                count++;
+            }
+        }
+        if (count > 0) {
+            evicted.addAndGet(count);
+            LOGGER.debug("Evicted {} idle topic(s) of '{}'", count, getName());
+        }
+    }
+
+    private static boolean isAttached(Node node) {
+        Node parent = node.getParent();
+        return parent != null && parent.getChild(node.getName()) == node;
+    }
+
+    /**
+     * @return Whether the node of the topic has a DSA subscriber or holds
+     *         the nodes of other topics.
+     */
+    private boolean isPinned(TopicEntry entry) {
+        Node node = entry.node;
+        if (node == null) {
+            return false;
+        }
+        Map<String, Node> children = node.getChildren();
+        boolean expanded = entry.sub != null && entry.sub.isExpandJson();
+        return hasSub(node) || (!expanded && children != null
+                                && !children.isEmpty());
+    }
+
+    /**
+     * Removes the folder nodes left empty by removing a topic. Nodes of
+     * other topics are kept.
+     */
+    private void removeEmptyParents(Node node) {
+        while (node != null && node != data) {
+            Map<String, Node> children = node.getChildren();
+            if ((children != null && !children.isEmpty())
+                    || node.getValueType() != null || hasSub(node)) {
+                break;
+            }
+            Node parent = node.getParent();
+            parent.removeChild(node);
+            node = parent;
+        }
+    }
+
+    private void initSpool() {
+        File file = new File(PERSISTENCE_DIR, getName() + ".spool");
+        spool = new OutboundSpool(this, file);
+
+        Node folder = NodeUtils.getOrCreateFolder(parent, "spool", "Spool");
+        Handler<ValuePair> configure = new Handler<ValuePair>() {
+            @Override
+            public void handle(ValuePair event) {
+                configureSpool();
+            }
+        };
+        spoolSize = NodeUtils.getOrCreateConfig(folder, "size",
+                "Memory Size", ValueType.NUMBER,
+                new Value(DEFAULT_SPOOL_SIZE), configure);
+        spoolOverflowSize = NodeUtils.getOrCreateConfig(folder, "overflowSize",
+                "Disk Overflow Size", ValueType.NUMBER,
+                new Value(0), configure);
+        ValueType type = ValueType.makeEnum(OutboundSpool.Policy.names());
+        String def = OutboundSpool.Policy.DROP_OLDEST.getName();
+        spoolPolicy = NodeUtils.getOrCreateConfig(folder, "policy",
+                "Drop Policy", type, new Value(def), configure);
+        spoolRate = NodeUtils.getOrCreateConfig(folder, "rate",
+                "Drain Rate", ValueType.NUMBER, new Value(0), configure);
+        spooledNode = NodeUtils.createMetric(folder, "spooled",
+                "Spooled", ValueType.NUMBER, new Value(0));
+        spoolAgeNode = NodeUtils.createMetric(folder, "oldestAge",
+                "Oldest Age", ValueType.NUMBER, new Value(0));
+        spoolDroppedNode = NodeUtils.createMetric(folder, "dropped",
+                "Dropped", ValueType.NUMBER, new Value(0));
+        configureSpool();
+    }
+
+    private void configureSpool() {
+        int size = NodeUtils.getInt(spoolSize, DEFAULT_SPOOL_SIZE);
+        int overflowSize = NodeUtils.getInt(spoolOverflowSize, 0);
+        Value v = spoolPolicy.getValue();
+        OutboundSpool.Policy policy;
+        policy = OutboundSpool.Policy.fromString(v == null ? null : v.getString());
+        v = spoolRate.getValue();
+        double rate = v == null || v.getNumber() == null ? 0
+                : v.getNumber().doubleValue();
+        spool.configure(size, overflowSize, policy, rate);
+    }
+
+    private void initPersistence() {
+        ValueType type = ValueType.makeEnum(PERSISTENCE_MEMORY,
+                                PERSISTENCE_JOURNAL, PERSISTENCE_FILE);
+        persistence = NodeUtils.getOrCreateConfig(parent, "persistence",
+                "Persistence", type, new Value(PERSISTENCE_MEMORY),
+                new Handler<ValuePair>() {
+            @Override
+            public void handle(ValuePair event) {
+                Value prev = event.getPrevious();
+                Value curr = event.getCurrent();
+                if (curr == null || (prev != null
+                        && curr.toString().equals(prev.toString()))) {
+                    return;
+                }
+                LOGGER.info("Reconnecting '{}' with {} persistence",
+                        getName(), curr);
+                disconnect();
+                synchronized (receiverLock) {
+                    clientReceiver = new ClientReceiver(Mqtt.this);
+                }
+                restoreSubscriptions();
+            }
+        });
+    }
+
+    /**
+     * Creates the store holding QoS 1 and 2 messages that are in flight
+     * for a new client instance.
+     */
+    public MqttClientPersistence createPersistence() {
+        Value v = persistence == null ? null : persistence.getValue();
+        String mode = v == null ? PERSISTENCE_MEMORY : v.getString();
+        String dir = new File(PERSISTENCE_DIR, getName()).getPath();
+        if (PERSISTENCE_JOURNAL.equals(mode)) {
+            return new JournalPersistence(dir);
+        } else if (PERSISTENCE_FILE.equals(mode)) {
+            return new MqttDefaultFilePersistence(dir);
+        }
+        return new MemoryPersistence();
+    }
+
+    private synchronized void startPipeline() {
+        int threads = NodeUtils.getInt(ingestThreads, DEFAULT_INGEST_THREADS);
+        int size = NodeUtils.getInt(ingestQueueSize, DEFAULT_INGEST_QUEUE_SIZE);
+        threads = Math.min(Math.max(threads, 0), 64);
+        int cacheSize = NodeUtils.getInt(topicCacheSize, DEFAULT_TOPIC_CACHE_SIZE);
+        topicCache = new TopicCache<>(cacheSize, threads);
+
+        IngestPipeline old = pipeline;
+        IngestPipeline next = new IngestPipeline(this, threads, size);
+        if (old != null) {
+            // Queued messages move over before new ones reach the new workers
+            old.stop(next);
+        }
+        pipeline = next;
+
+        Node ingest = ingestThreads.getParent();
+        if (ingestRates != null) {
+            for (Node n : ingestRates) {
+                ingest.removeChild(n);
+            }
+        }
+        ingestRates = new Node[threads];
+        lastProcessed = new long[threads];
+        for (int i = 0; i < threads; i++) {
+            String name = "worker" + i;
+            String display = "Worker " + i + " Throughput";
+            ingestRates[i] = NodeUtils.createMetric(ingest, name, display,
+                                        ValueType.NUMBER, new Value(0));
+        }
+        LOGGER.info("Ingesting '{}' with {} worker(s)", getName(), threads);
+    }
+
+    protected synchronized void updateStats() {
+        IngestPipeline p = pipeline;
+        if (p == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        double elapsed = (now - lastStatsTime) / 1000.0;
+        lastStatsTime = now;
+
+        ingestDepth.setValue(new Value(p.getQueueDepth()));
+        ingestDropped.setValue(new Value(p.getDropped()));
+        ingestProcessed.setValue(new Value(p.getProcessed()));
+        for (Subscription sub : subscriptions.values()) {
+            sub.updateStats();
+        }
+        if (inFlightNode != null) {
+            int inFlight = MAX_INFLIGHT - window.availablePermits();
+            inFlightNode.setValue(new Value(inFlight));
+            publishedNode.setValue(new Value(published.get()));
+            deliveredNode.setValue(new Value(delivered.get()));
+            publishFailuresNode.setValue(new Value(publishFailures.get()));
+        }
+        ClientReceiver receiver = clientReceiver;
+        if (receiver != null && stateNode != null) {
+            stateNode.setValue(new Value(receiver.getState().name()));
+            timeInStateNode.setValue(new Value(receiver.getTimeInState() / 1000.0));
+            reconnectsNode.setValue(new Value(receiver.getReconnects()));
+            connectLatencyNode.setValue(new Value(receiver.getLastConnectLatency()));
+        }
+        long queued = startupQueued;
+        if (queued > 0 && startupWaitNode != null) {
+            startupWaitNode.setValue(elapsed(queued, startupReleased));
+            startupConnectNode.setValue(elapsed(queued, startupConnected));
+            firstValueNode.setValue(elapsed(queued, firstMessage));
+        }
+        if (spool != null) {
+            spooledNode.setValue(new Value(spool.size()));
+            spoolAgeNode.setValue(new Value(spool.getOldestAge() / 1000.0));
+            spoolDroppedNode.setValue(new Value(spool.getDropped()));
+        }
+        if (teardownState != null) {
+            teardownState.setValue(new Value(teardown.getCurrentFilter()));
+            teardownQueued.setValue(new Value(teardown.getQueued()));
+            teardownVisited.setValue(new Value(teardown.getVisited()));
+            teardownRemoved.setValue(new Value(teardown.getRemoved()));
+        }
+        if (idleTrackedNode != null) {
+            idleTrackedNode.setValue(new Value(idle.size()));
+            idleEvictedNode.setValue(new Value(evicted.get()));
+        }
+        TopicCache<TopicEntry> cache = topicCache;
+        if (cache != null) {
+            cachedTopics.setValue(new Value(cache.size()));
+        }
+        TopicStore store = this.store;
+        storedTopics.setValue(new Value(store == null ? 0 : store.size()));
+        int workers = Math.min(p.getWorkerCount(), ingestRates.length);
+        for (int i = 0; i < workers; i++) {
+            long processed = p.getProcessed(i);
+            long delta = processed - lastProcessed[i];
+            lastProcessed[i] = processed;
+            if (elapsed > 0) {
+                ingestRates[i].setValue(new Value(delta / elapsed));
+            }
+        }
+    }
+
+    /**
+     * @return Seconds between the times, no value if the end was not
+     *         reached yet.
+     */
+    private static Value elapsed(long start, long end) {
+        if (end == 0) {
+            return new Value((Number) null);
+        }
+        return new Value(Math.max(end - start, 0) / 1000.0);
+    }
+
+    /**
+     * Disconnects from the server and stops all background work.
+     */
+    public void shutdown() {
+        disconnect();
+        synchronized (this) {
+            if (statsFuture != null) {
+                statsFuture.cancel(false);
+                statsFuture = null;
+            }
+            if (sweepFuture != null) {
+                sweepFuture.cancel(false);
+                sweepFuture = null;
+            }
+            teardown.stop();
+            if (pipeline != null) {
+                pipeline.stop();
+                pipeline = null;
+            }
+        }
+        for (Subscription sub : subscriptions.values()) {
+            sub.stop();
+        }
+        if (spool != null) {
+            spool.stop();
+        }
     }
 
     public void edit(String url,
@@ -129,79 +829,154 @@ public class Mqtt implements MqttCallback {
             parent.removeRoConfig("cert");
             parent.removeRoConfig("privKey");
         }
+        settings = ConnectionSettings.read(parent);
         disconnect();
-        destroyEverything(data);
+        synchronized (this) {
+            sslFactory = null;
+            sslFingerprint = null;
+        }
         synchronized (receiverLock) {
             clientReceiver = new ClientReceiver(this);
         }
-        restoreSubscriptions();
+        tearDown("#", restore);
+    }
+
+    public String getName() {
+        return parent.getName();
+    }
+
+    /**
+     * @return Snapshot of the connection settings, only replaced when the
+     *         server is edited.
+     */
+    public ConnectionSettings getSettings() {
+        return settings;
     }
 
     public String getUrl() {
-        return parent.getRoConfig("url").getString();
+        return settings.getUrl();
     }
 
     public String getClientId() {
-        return parent.getRoConfig("clientId").getString();
+        return settings.getClientId();
     }
 
     public String getUsername() {
-        Value vUser = parent.getRoConfig("user");
-        if (vUser != null) {
-            return vUser.getString();
-        }
-        return null;
+        return settings.getUsername();
     }
 
     public char[] getPassword() {
-        char[] password = parent.getPassword();
-        if (password != null) {
-            return password;
-        }
-        return null;
+        return settings.getPassword();
     }
 
     public String getCa() {
-        Value v = parent.getRoConfig("ca");
-        return v == null ? null : v.getString();
+        return settings.getCa();
     }
 
     public String getCert() {
-        Value v = parent.getRoConfig("cert");
-        return v == null ? null : v.getString();
+        return settings.getCert();
     }
 
     public String getPrivateKey() {
-        Value v = parent.getRoConfig("privKey");
-        return v == null ? null : v.getString();
+        return settings.getPrivateKey();
+    }
+
+    /**
+     * Gets the TLS socket factory of the server. The parsed key material
+     * and its context are reused across reconnects for as long as the
+     * TLS configuration is unchanged.
+     */
+    public synchronized SSLSocketFactory getSocketFactory() {
+        String ca = getCa();
+        String cert = getCert();
+        String key = getPrivateKey();
+        if (ca == null || cert == null || key == null) {
+            ca = null;
+            cert = null;
+            key = null;
+        }
+        String fingerprint = SslSocketFactoryImpl.fingerprint(ca, cert, key);
+        if (sslFactory == null || !fingerprint.equals(sslFingerprint)) {
+            sslFactory = new SslSocketFactoryImpl(ca, cert, key);
+            sslFingerprint = fingerprint;
+        }
+        return sslFactory;
+    }
+
+    /**
+     * @return Bridge to the embedded broker, {@code null} if it is not
+     *         running.
+     */
+    public LocalBridge getLocalBridge() {
+        Node root = parent.getParent();
+        Node brokerSettings = root == null ? null : root.getChild("brokerSettings");
+        Object meta = brokerSettings == null ? null : brokerSettings.getMetaData();
+        return meta instanceof Broker ? ((Broker) meta).getBridge() : null;
+    }
+
+    /**
+     * Called once a new client instance is connected. Publishes still in
+     * flight on a previous instance can never complete, so the in-flight
+     * window starts over.
+     */
+    public void onConnected() {
+        window = new Semaphore(MAX_INFLIGHT);
+        setStatus(true);
+        if (startupConnected == 0) {
+            startupConnected = System.currentTimeMillis();
+        }
+        Startup startup = this.startup;
+        if (startup != null) {
+            startup.done(this);
+        }
     }
 
     public void setStatus(boolean connected) {
         if (status != null) {
             status.setValue(new Value(connected));
         }
+        if (spool != null) {
+            spool.setConnected(connected);
+        }
     }
 
     public boolean getCleanSession() {
-        Value v = parent.getRoConfig("cleanSession");
-        return v == null ? true : v.getBool();
+        return settings.getCleanSession();
     }
 
+    /**
+     * @return Default QoS of the server.
+     */
     protected int getQos() {
-        return parent.getRoConfig("qos").getNumber().intValue();
+        return settings.getQos();
+    }
+
+    /**
+     * @return QoS of the subscription, the default QoS of the server if
+     *         the subscription does not set its own.
+     */
+    private int getQos(Subscription sub) {
+        int qos = sub == null ? -1 : sub.getQos();
+        return qos < 0 ? getQos() : qos;
     }
 
-    protected void get(Handler<MqttClient> onClientReceived) {
-        clientReceiver.get(onClientReceived, false);
+    protected void get(Handler<MqttAsyncClient> onClientReceived) {
+        clientReceiver.get(onClientReceived);
     }
 
     protected void disconnect() {
         setStatus(false);
         synchronized (receiverLock) {
-            MqttClient client = clientReceiver.shutdown();
+            MqttAsyncClient client = clientReceiver.shutdown();
             try {
                 if (client != null) {
                     client.setCallback(null);
+                    client.disconnectForcibly(0, 1000);
+                }
+            } catch (Exception ignored) {
+            }
+            try {
+                if (client != null) {
                     client.close();
                 }
             } catch (Exception ignored) {
@@ -210,7 +985,13 @@ public class Mqtt implements MqttCallback {
         }
     }
 
+    /**
+     * Subscribes to every subscription node and every data node that has
+     * a DSA subscriber. Data nodes already covered by a subscription are
+     * skipped and the remaining topics are sent in batches.
+     */
     protected void restoreSubscriptions() {
+        Map<String, Integer> topics = new LinkedHashMap<>();
         Map<String, Node> children = subs.getChildren();
         if (children != null) {
             for (Map.Entry<String, Node> entry : children.entrySet()) {
@@ -220,73 +1001,184 @@ public class Mqtt implements MqttCallback {
                     continue;
                 }
                 LOGGER.info("Restoring subscription for '{}'", name);
-
-                String topic = child.getValue().getString();
-                subscribe(name, topic);
+                addSubscription(name, child);
+            }
+        }
+        for (Subscription sub : subscriptions.values()) {
+            String topic = sub.getTopic();
+            int qos = getFilterQos(topic);
+            if (!isCovered(topic, qos)) {
+                topics.put(topic, qos);
             }
         }
 
-        recursiveResubscribe(data.getChildren());
+        int explicit = topics.size();
+        collectDataSubscriptions(data.getChildren(), topics);
+        int implicit = topics.size() - explicit;
+        if (implicit > 0) {
+            LOGGER.info("Restoring {} data subscription(s)", implicit);
+        }
+        subscribeAll(topics);
     }
 
-    private void recursiveResubscribe(Map<String, Node> children) {
+    private void collectDataSubscriptions(Map<String, Node> children,
+                                          Map<String, Integer> topics) {
         if (children == null) {
             return;
         }
-        final int qos = getQos();
-        for (final Node node : children.values()) {
+        for (Node node : children.values()) {
             if (hasSub(node)) {
-                get(new Handler<MqttClient>() {
-                    @Override
-                    public void handle(MqttClient event) {
-                        String fullTopic = node.getPath();
-                        int length = data.getPath().length() + 1;
-                        fullTopic = fullTopic.substring(length);
-                        fullTopic = StringUtils.decodeName(fullTopic);
-                        LOGGER.info("Restoring subscription for '{}'", fullTopic);
-                        try {
-                            event.subscribe(fullTopic, qos);
-                        } catch (MqttException e) {
-                            throw new RuntimeException(e);
-                        }
-                    }
-                });
+                String topic = getTopic(node);
+                if (findSubscription(topic) == null) {
+                    LOGGER.debug("Restoring subscription for '{}'", topic);
+                    topics.put(topic, getQos());
+                }
             }
-            recursiveResubscribe(node.getChildren());
+            collectDataSubscriptions(node.getChildren(), topics);
         }
     }
 
-    public void publish(final String topic,
+    void subscribeAll(final Map<String, Integer> topics) {
+        if (topics.isEmpty()) {
+            return;
+        }
+        get(new Handler<MqttAsyncClient>() {
+            @Override
+            public void handle(MqttAsyncClient event) {
+                subscribe(event, topics);
+            }
+        });
+    }
+
+    /**
+     * Subscribes to the topics using multi-topic SUBSCRIBE packets, see
+     * {@link SubscribeBatches}.
+     *
+     * @param topics Filters to subscribe to mapped to their QoS.
+     */
+    private void subscribe(MqttAsyncClient client, Map<String, Integer> topics) {
+        subscribe(client, topics, null);
+    }
+
+    /**
+     * @param done Called once every batch completed, may be {@code null}.
+     */
+    private void subscribe(MqttAsyncClient client,
+                           Map<String, Integer> topics,
+                           Runnable done) {
+        String[] all = new String[topics.size()];
+        int[] qos = new int[all.length];
+        int n = 0;
+        for (Map.Entry<String, Integer> entry : topics.entrySet()) {
+            all[n] = entry.getKey();
+            qos[n++] = entry.getValue();
+        }
+        new SubscribeBatches(client, all, qos, done).start();
+    }
+
+    public void publish(String topic,
                         String value,
                         boolean retained) {
+        publish(topic, value.getBytes(PayloadDecoder.UTF_8), retained);
+    }
+
+    public void publish(String topic,
+                        byte[] payload,
+                        boolean retained) {
+        publish(topic, payload, getQos(), retained);
+    }
+
+    /**
+     * @param qos QoS of the message, overriding the default of the server.
+     */
+    public void publish(final String topic,
+                        byte[] payload,
+                        int qos,
+                        boolean retained) {
+        final MqttMessage msg = new MqttMessage();
+        msg.setPayload(payload);
+        msg.setQos(qos);
+        msg.setRetained(retained);
+        if (spool != null && spool.offer(topic, msg)) {
+            return;
+        }
+        get(new Handler<MqttAsyncClient>() {
+            @Override
+            public void handle(MqttAsyncClient event) {
+                publish(event, topic, msg, null);
+            }
+        });
+    }
+
+    /**
+     * Hands a message to the client without waiting for the broker. Up to
+     * {@link #MAX_INFLIGHT} messages are pipelined, once the window is
+     * full the calling thread blocks until a publish completes.
+     *
+     * @param client Connected client.
+     * @param topic Topic to publish to.
+     * @param msg Message to publish.
+     * @param listener Optional listener notified of the completion.
+     */
+    protected void publish(MqttAsyncClient client,
+                           String topic,
+                           MqttMessage msg,
+                           final IMqttActionListener listener) {
+        final Semaphore window = this.window;
+        window.acquireUninterruptibly();
         try {
-            byte[] payload = value.getBytes("UTF-8");
-            final MqttMessage msg = new MqttMessage();
-            msg.setPayload(payload);
-            msg.setQos(getQos());
-            msg.setRetained(retained);
-            get(new Handler<MqttClient>() {
+            client.publish(topic, msg, null, new IMqttActionListener() {
                 @Override
-                public void handle(MqttClient event) {
-                    try {
-                        event.publish(topic, msg);
-                    } catch (MqttException e) {
-                        throw new RuntimeException(e);
+                public void onSuccess(IMqttToken token) {
+                    window.release();
+                    published.incrementAndGet();
+                    if (listener != null) {
+                        listener.onSuccess(token);
+                    }
+                }
+
+                @Override
+                public void onFailure(IMqttToken token, Throwable t) {
+                    window.release();
+                    publishFailures.incrementAndGet();
+                    LOGGER.warn("Failed to publish", t);
+                    if (listener != null) {
+                        listener.onFailure(token, t);
                     }
                 }
             });
-        } catch (UnsupportedEncodingException e) {
+        } catch (MqttException e) {
+            window.release();
             throw new RuntimeException(e);
         }
     }
 
+    public void subscribe(String name, String topic) {
+        subscribe(name, topic, null);
+    }
+
+    /**
+     * @param name Name of the subscription node.
+     * @param topic Topic filter to subscribe to.
+     * @param options Subscription options, see {@link Subscription#OPTIONS}.
+     *                Only applied when the subscription is created.
+     */
     public void subscribe(final String name,
-                          final String topic) {
-        if (subs.getChild(name) == null) {
+                          final String topic,
+                          Map<String, Value> options) {
+        Node node = subs.getChild(name);
+        if (node == null) {
             NodeBuilder builder = subs.createChild(name);
             builder.setValueType(ValueType.STRING);
             builder.setValue(new Value(topic));
-            Node node = builder.build();
+            if (options != null) {
+                for (Map.Entry<String, Value> entry : options.entrySet()) {
+                    if (entry.getValue() != null) {
+                        builder.setRoConfig(entry.getKey(), entry.getValue());
+                    }
+                }
+            }
+            node = builder.build();
 
             builder = node.createChild("unsubscribe");
             builder.setDisplayName("Unsubscribe");
@@ -296,11 +1188,18 @@ public class Mqtt implements MqttCallback {
             builder.setAction(act);
             builder.build();
         }
-        get(new Handler<MqttClient>() {
+        int subscribed = filters.contains(topic) ? getFilterQos(topic) : -1;
+        addSubscription(name, node);
+        final int qos = getFilterQos(topic);
+        if (subscribed >= qos || isCovered(topic, qos)) {
+            LOGGER.info("'{}' is already covered by a subscription", topic);
+            return;
+        }
+        get(new Handler<MqttAsyncClient>() {
             @Override
-            public void handle(MqttClient event) {
+            public void handle(MqttAsyncClient event) {
                 try {
-                    event.subscribe(topic, getQos());
+                    event.subscribe(topic, qos);
                 } catch (MqttException e) {
                     throw new RuntimeException(e);
                 }
@@ -308,188 +1207,643 @@ public class Mqtt implements MqttCallback {
         });
     }
 
+    /**
+     * @param filter Filter to check.
+     * @param qos QoS the filter needs.
+     * @return Whether a different filter already receives every topic of
+     *         the filter with at least the QoS.
+     */
+    private boolean isCovered(String filter, int qos) {
+        for (Subscription sub : filters.covering(filter)) {
+            if (getQos(sub) >= qos) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return Highest QoS of the subscriptions using the exact filter.
+     */
+    private int getFilterQos(String filter) {
+        int qos = -1;
+        for (Subscription sub : filters.get(filter)) {
+            qos = Math.max(qos, getQos(sub));
+        }
+        return qos < 0 ? getQos() : qos;
+    }
+
+    private void addSubscription(String name, Node node) {
+        if (!subscriptions.containsKey(name)) {
+            Subscription sub = new Subscription(node);
+            subscriptions.put(name, sub);
+            filters.add(sub.getTopic(), sub);
+            startConflation(sub);
+            invalidateTopicCache();
+        }
+    }
+
+    /**
+     * Removes a subscription. Filters it covered are subscribed to again
+     * before it is unsubscribed from and its nodes are only torn down
+     * when no other subscription covers them. When another subscription
+     * uses the same filter with a lower QoS, the filter is subscribed to
+     * again with that QoS instead.
+     */
     public void unsubscribe(String name) {
         final String topic;
         Node child = subs.removeChild(name);
+        Subscription sub = subscriptions.remove(name);
+        int removedQos = -1;
+        if (sub != null) {
+            removedQos = getQos(sub);
+            filters.remove(sub.getTopic(), sub);
+            sub.stop();
+            // Cached entries still point at the stopped subscription
+            invalidateTopicCache();
+        }
         if (child == null) {
             return;
         }
         topic = child.getValue().getString();
 
-        get(new Handler<MqttClient>() {
-            @Override
-            public void handle(MqttClient event) {
-                try {
-                    event.unsubscribe(topic);
-                } catch (MqttException e) {
-                    throw new RuntimeException(e);
-                } finally {
-                    destroyTree(topic, data);
+        final Map<String, Integer> uncovered = new LinkedHashMap<>();
+        if (filters.contains(topic)) {
+            // Another subscription uses the same filter
+            int qos = getFilterQos(topic);
+            if (qos >= removedQos) {
+                return;
+            }
+            uncovered.put(topic, qos);
+            for (String filter : filters.coveredBy(topic)) {
+                int filterQos = getFilterQos(filter);
+                if (!isCovered(filter, filterQos)) {
+                    uncovered.put(filter, filterQos);
                 }
             }
+            subscribeAll(uncovered);
+            return;
+        }
+
+        for (String filter : filters.coveredBy(topic)) {
+            int qos = getFilterQos(filter);
+            if (!isCovered(filter, qos)) {
+                uncovered.put(filter, qos);
+            }
+        }
+        final boolean covered = filters.isCovered(topic);
+        get(new Handler<MqttAsyncClient>() {
+            @Override
+            public void handle(final MqttAsyncClient event) {
+                subscribe(event, uncovered, new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            event.unsubscribe(topic);
+                        } catch (MqttException e) {
+                            LOGGER.warn("Failed to unsubscribe from '{}'", topic, e);
+                        } finally {
+                            if (!covered) {
+                                tearDown(topic, null);
+                            }
+                        }
+                    }
+                });
+            }
         });
     }
 
     @Override
     public void connectionLost(Throwable throwable) {
         LOGGER.error("Lost connection to MQTT", throwable);
+        synchronized (receiverLock) {
+            if (clientReceiver != null) {
+                clientReceiver.connectionLost();
+            }
+        }
         restoreSubscriptions();
     }
 
     @Override
-    public synchronized void messageArrived(final String s,
-                                            final MqttMessage msg) throws Exception {
-        if (s.contains("//")) {
+    public void messageArrived(String s, MqttMessage msg) {
+        IngestPipeline p = pipeline;
+        if (p != null) {
+            p.submit(s, msg);
+        } else {
+            handleMessage(s, msg);
+        }
+    }
+
+    /**
+     * Applies a message to the data tree. Messages of the same topic are
+     * always handled by the same thread.
+     *
+     * @param s Topic of the message.
+     * @param msg Message to apply.
+     */
+    public void handleMessage(String s, MqttMessage msg) {
+        if (firstMessage == 0) {
+            long now = System.currentTimeMillis();
+            firstMessage = now;
+            Startup startup = this.startup;
+            if (startup != null) {
+                startup.firstValue(now);
+            }
+        }
+        TopicCache<TopicEntry> cache = topicCache;
+        TopicEntry entry = cache == null ? null : cache.get(s);
+        if (entry == null) {
+            entry = createEntry(s);
+            if (entry == null) {
+                return;
+            }
+        }
+
+        if (idle.isEnabled()) {
+            idle.touch(entry, System.currentTimeMillis());
+        }
+
+        Subscription sub = entry.sub;
+        if (sub != null && msg.isRetained() && sub.isIgnoreRetained()) {
             return;
         }
-        final String[] split = NodeManager.splitPath(s);
-        if (split.length <= 0) {
+        byte[] payload = msg.getPayload();
+        if (sub != null && sub.getConflateInterval() > 0) {
+            if (entry.offer(payload)) {
+                sub.markDirty(entry);
+            } else {
+                sub.conflated();
+            }
             return;
         }
+        apply(entry, payload);
+    }
 
-        //Create a zero node if there is a leading slash
-        NodeBuilder b;
-        int offset;
-        if (s.startsWith("/")) {
-            b = data.createChild("%2f");
-            offset = 0;
+    /**
+     * Runs a payload through the filters of its subscription and applies
+     * it to the node of the topic. Payloads suppressed by the minimum
+     * interval are deferred, the latest one is applied once the interval
+     * expires.
+     */
+    private void apply(TopicEntry entry, byte[] payload) {
+        Subscription sub = entry.sub;
+        if (sub != null && sub.getMinInterval() > 0) {
+            // Trailing updates run on the daemon pool
+            synchronized (entry) {
+                applyNow(entry, payload);
+            }
         } else {
-            b = data.createChild(split[0]);
-            offset = 1;
+            applyNow(entry, payload);
         }
+    }
 
-        b.setSerializable(false);
-        b.build();
+    private void applyNow(TopicEntry entry, byte[] payload) {
+        long now = System.currentTimeMillis();
+        Subscription sub = entry.sub;
+        boolean conflating = sub != null && sub.getConflateInterval() > 0;
+        if (!entry.accept(payload, now)) {
+            long delay = entry.getIntervalRemaining(now);
+            if (delay <= 0) {
+                return;
+            } else if (conflating) {
+                // A newer payload pending is already queued for a flush
+                if (entry.restore(payload)) {
+                    scheduleTrailing(entry, delay);
+                }
+            } else if (entry.offer(payload)) {
+                scheduleTrailing(entry, delay);
+            }
+            return;
+        } else if (!conflating && sub != null && sub.getMinInterval() > 0) {
+            // Anything deferred arrived before this payload
+            entry.takePending();
+        }
+        Node node = entry.node;
+        if (node == null) {
+            TopicStore store = this.store;
+            if (store != null && !entry.isSuperseded()) {
+                store.put(entry.topic, payload);
+                if (!entry.isSuperseded()) {
+                    // Any later materialize moves the payload
+                    return;
+                }
+                // Materialize may have emptied the store before the put
+                store.remove(entry.topic);
+            }
+            synchronized (treeLock) {
+                // Waits for a materialize in progress to finish
+                node = findDataNode(entry.topic);
+                if (node == null) {
+                    if (store != null) {
+                        store.put(entry.topic, payload);
+                    }
+                    return;
+                }
+            }
+            entry = getCurrentEntry(entry.topic, node);
+            sub = entry.sub;
+        }
+        if (sub != null && sub.isExpandJson() && entry.expand(payload)) {
+            if (LOGGER.isTraceEnabled()) {
+                LOGGER.trace("Expanded '{}'", entry.topic);
+            }
+            return;
+        }
 
-        for (int i = offset; i < split.length; i++) {
-            String name = split[i];
-            b = b.build().createChild(name);
-            b.setSerializable(false);
+        Value value = entry.decode(payload);
+        if (value == null) {
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("Ignoring undecodable payload on '{}'", entry.topic);
+            }
+            return;
         }
-        b.setValueType(ValueType.STRING);
-        Node node = b.build();
-        // Extra assurance in case a parent never had its type set
-        node.setValueType(ValueType.STRING);
-        node.setValue(new Value(msg.toString()));
-        node.setWritable(Writable.WRITE);
-        node.getListener().setValueHandler(new Handler<ValuePair>() {
+        node.setValue(value);
+        if (LOGGER.isTraceEnabled()) {
+            LOGGER.trace("Updating '{}' with '{}'", node.getPath(), value);
+        }
+    }
+
+    /**
+     * Applies the payload deferred by the minimum interval of a topic
+     * once the interval expired, unless a newer entry replaced it.
+     */
+    private void scheduleTrailing(final TopicEntry entry, long delay) {
+        Objects.getDaemonThreadPool().schedule(new Runnable() {
             @Override
-            public void handle(ValuePair event) {
-                event.setReject(true);
-                publish(s, event.getCurrent().toString(), false);
+            public void run() {
+                TopicCache<TopicEntry> cache = topicCache;
+                TopicEntry current = cache == null ? null : cache.get(entry.topic);
+                synchronized (entry) {
+                    byte[] payload = entry.takePending();
+                    if (payload == null || (current != null && current != entry)) {
+                        return;
+                    }
+                    try {
+                        apply(entry, payload);
+                    } catch (RuntimeException e) {
+                        LOGGER.warn("Failed to apply '" + entry.topic + "'", e);
+                    }
+                }
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Applies the latest payload of every topic of a conflating
+     * subscription that received messages since the last flush.
+     */
+    private void flush(Subscription sub) {
+        TopicEntry entry;
+        while ((entry = sub.pollDirty()) != null) {
+            byte[] payload = entry.takePending();
+            if (payload != null) {
+                try {
+                    apply(entry, payload);
+                } catch (RuntimeException e) {
+                    LOGGER.warn("Failed to flush '" + entry.topic + "'", e);
+                }
             }
-        });
-        if (LOGGER.isTraceEnabled()) {
-            LOGGER.trace("Updating '{}' with '{}'", node.getPath(), msg);
         }
     }
 
-    @Override
-    public void deliveryComplete(IMqttDeliveryToken iMqttDeliveryToken) {
+    private void startConflation(final Subscription sub) {
+        long interval = sub.getConflateInterval();
+        if (interval <= 0) {
+            return;
+        }
+        ScheduledThreadPoolExecutor stpe = Objects.getDaemonThreadPool();
+        sub.setFlushFuture(stpe.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                flush(sub);
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS));
     }
 
-    public void destroyTree(String topic, Node node) {
-        if ("#".equals(topic) || "+".equals(topic)) {
-            destroyEverything(node);
-        } else {
-            String[] split = NodeManager.splitPath(topic);
-            for (int i = 0; i < split.length; i++) {
-                topic = split[i];
-                if ("#".equals(topic)) {
-                    destroyEverything(node);
-                } else if ("+".equals(topic)) {
-                    destroyWildCardTree(node, split, i);
-                    break;
-                } else if (i + 1 >= split.length) {
-                    destroyIndividualNode(topic, node);
-                    break;
-                } else {
-                    node = node.getChild(topic);
-                    if (node == null) {
-                        break;
+    /**
+     * Resolves the node and subscription of a topic. The first time a
+     * topic is seen its node gets its type and write handler, later
+     * messages only update the value. When data nodes are created lazily
+     * the entry has no node until something lists or subscribes to it,
+     * except for subscriptions expanding JSON. The entry is added to the
+     * topic cache.
+     *
+     * @param s Topic of the entry.
+     * @return Entry of the topic or {@code null} if the topic is invalid.
+     */
+    private TopicEntry createEntry(String s) {
+        Subscription sub = findSubscription(s);
+        boolean lazy = store != null && (sub == null || !sub.isExpandJson());
+        if (getDataPath(s) == null) {
+            return null;
+        }
+        synchronized (treeLock) {
+            // Cached under the lock so removing the node always drops it
+            Node node = lazy ? findDataNode(s) : createDataNode(s);
+            TopicEntry entry = new TopicEntry(s, node, sub, treeLock);
+            if (node != null) {
+                initTopicNode(entry);
+            }
+            TopicCache<TopicEntry> cache = topicCache;
+            if (cache != null) {
+                cache.put(s, entry);
+            }
+            return entry;
+        }
+    }
+
+    private void initTopicNode(TopicEntry entry) {
+        final Node node = entry.node;
+        final String topic = entry.topic;
+        if (node.getWritable() != Writable.WRITE) {
+            // Extra assurance in case a parent never had its type set
+            node.setValueType(entry.getValueType());
+            node.setWritable(Writable.WRITE);
+            node.getListener().setValueHandler(new Handler<ValuePair>() {
+                @Override
+                public void handle(ValuePair event) {
+                    event.setReject(true);
+                    TopicEntry current = getCurrentEntry(topic, node);
+                    byte[] payload = current.encode(event.getCurrent());
+                    if (payload == null) {
+                        LOGGER.warn("Rejected write to '{}', not valid base64",
+                                    topic);
+                        return;
                     }
+                    publish(topic, payload, getQos(current.sub), false);
+                }
+            });
+        } else if (entry.isResolved()) {
+            // Bound to an existing node, its subscription may decode to
+            // a different type than the one the node was created with
+            node.setValueType(entry.getValueType());
+        }
+    }
+
+    /**
+     * @return Cached entry of the node of a topic, or a new one for the
+     *         current subscription when the cached entry was replaced or
+     *         refers to a different node.
+     */
+    private TopicEntry getCurrentEntry(String topic, Node node) {
+        TopicCache<TopicEntry> cache = topicCache;
+        TopicEntry entry = cache == null ? null : cache.get(topic);
+        if (entry == null || entry.node != node) {
+            // Automatic decoding never resolves to base64, so values
+            // written before a payload is classified encode the same way
+            entry = new TopicEntry(topic, node, findSubscription(topic), treeLock);
+            initTopicNode(entry);
+        }
+        return entry;
+    }
+
+    /**
+     * Creates the node of a topic if it does not exist yet. The latest
+     * payload kept in the topic store is moved to the node.
+     *
+     * @param topic Topic of the node.
+     * @return Node of the topic or {@code null} if the topic is invalid.
+     */
+    public Node materialize(String topic) {
+        synchronized (treeLock) {
+            Node node = findDataNode(topic);
+            if (node != null) {
+                return node;
+            }
+            node = createDataNode(topic);
+            if (node == null) {
+                return null;
+            }
+            // The cached entry still points at the store, superseded
+            // before the store is emptied so ingest never strands a
+            // payload there
+            TopicCache<TopicEntry> cache = topicCache;
+            TopicEntry cached = cache == null ? null : cache.remove(topic);
+            if (cached != null) {
+                cached.supersede();
+            }
+            Subscription sub = findSubscription(topic);
+            TopicEntry entry = new TopicEntry(topic, node, sub, treeLock);
+            initTopicNode(entry);
+            TopicStore store = this.store;
+            byte[] payload = store == null ? null : store.remove(topic);
+            if (payload != null) {
+                Value value = entry.decode(payload);
+                if (value != null) {
+                    node.setValue(value);
                 }
             }
+            return node;
         }
     }
 
-    private void destroyEverything(Node node) {
-        if (hasSub(node)) {
-            destroyIndividualNode(node.getName(), node.getParent());
+    /**
+     * Creates the nodes of the topic levels directly below a node of the
+     * data tree that is being listed.
+     */
+    private void materializeChildren(Node node) {
+        TopicStore store = this.store;
+        if (store == null) {
             return;
         }
-        Map<String, Node> children = node.getChildren();
-        if (children != null) {
-            for (Node n : children.values()) {
-                if (!hasSub(n)) {
-                    destroyEverything(n);
+        String prefix = node == data ? null : getTopic(node);
+        synchronized (treeLock) {
+            for (String name : store.children(prefix)) {
+                String topic = prefix == null ? name : prefix + "/" + name;
+                if (store.contains(topic)) {
+                    materialize(topic);
+                } else if (prefix == null && name.isEmpty()) {
+                    createLevel(data, "%2f");
+                } else if (!name.isEmpty()) {
+                    createLevel(node, name);
                 }
             }
         }
-        Value value = node.getRoConfig("preserve");
-        if (!(hasSub(node) || (value != null && value.getBool()))
-                && (children == null || children.size() <= 0)) {
-            node.getParent().removeChild(node);
+    }
+
+    /**
+     * @param topic Topic to find the subscription of.
+     * @return The most specific subscription matching the topic or
+     *         {@code null} if the topic is only subscribed to from DSA.
+     */
+    private Subscription findSubscription(String topic) {
+        Subscription found = null;
+        for (Subscription sub : filters.match(topic)) {
+            if (found == null
+                    || sub.getTopic().length() > found.getTopic().length()) {
+                found = sub;
+            }
         }
+        return found;
     }
 
-    private void destroyWildCardTree(Node node, String[] split, int i) {
-        Map<String, Node> children = node.getChildren();
-        if (children != null) {
-            StringBuilder b = new StringBuilder();
-            for (int x = ++i;;) {
-                b.append(split[x]);
-                if (++x < split.length) {
-                    b.append("/");
-                } else {
-                    break;
-                }
+    /**
+     * Walks the data tree down to the node of the topic, creating any
+     * missing nodes along the way.
+     *
+     * @param s Topic of the node.
+     * @return Node of the topic or {@code null} if the topic is invalid.
+     */
+    private Node createDataNode(String s) {
+        String[] path = getDataPath(s);
+        if (path == null) {
+            return null;
+        }
+
+        synchronized (treeLock) {
+            Node node = data;
+            int last = path.length - 1;
+            for (int i = 0; i < last; i++) {
+                node = createLevel(node, path[i]);
             }
-            String built = b.toString();
+            NodeBuilder b = node.createChild(path[last]);
+            b.setSerializable(false);
+            b.setValueType(ValueType.STRING);
+            node = b.build();
+            if (store != null) {
+                node.getListener().setOnListHandler(listHandler);
+            }
+            return node;
+        }
+    }
 
-            for (Node child : children.values()) {
-                destroyTree(built, child);
+    /**
+     * @param s Topic of the node.
+     * @return Node of the topic or {@code null} if it does not exist.
+     */
+    private Node findDataNode(String s) {
+        String[] path = getDataPath(s);
+        if (path == null) {
+            return null;
+        }
+        synchronized (treeLock) {
+            Node node = data;
+            for (int i = 0; i < path.length && node != null; i++) {
+                node = node.getChild(path[i]);
             }
+            return node;
         }
     }
 
-    private void destroyIndividualNode(String topic, Node node) {
-        final Node tmp = node.getChild(topic);
-        if (!hasSub(tmp)) {
-            node.removeChild(topic);
-            while (node != null) {
-                if (hasSub(node) || node.getChildren().size() > 0) {
-                    break;
-                }
+    /**
+     * @param s Topic to resolve.
+     * @return Names of the nodes leading from the data node to the node
+     *         of the topic or {@code null} if the topic is invalid.
+     */
+    private static String[] getDataPath(String s) {
+        if (s.contains("//")) {
+            return null;
+        }
+        String[] split = NodeManager.splitPath(s);
+        if (split.length <= 0) {
+            return null;
+        }
+        if (!s.startsWith("/")) {
+            return split;
+        }
+        //Create a zero node if there is a leading slash
+        String[] path = new String[split.length + 1];
+        path[0] = "%2f";
+        System.arraycopy(split, 0, path, 1, split.length);
+        return path;
+    }
 
-                Value value = node.getRoConfig("preserve");
-                if (value != null && value.getBool()) {
-                    break;
-                }
+    private Node createLevel(Node parent, String name) {
+        NodeBuilder b = parent.createChild(name);
+        b.setSerializable(false);
+        Node node = b.build();
+        if (store != null) {
+            node.getListener().setOnListHandler(listHandler);
+        }
+        return node;
+    }
 
-                node.getParent().removeChild(node);
-                node = node.getParent();
-            }
+    @Override
+    public void deliveryComplete(IMqttDeliveryToken iMqttDeliveryToken) {
+        delivered.incrementAndGet();
+    }
+
+    /**
+     * Removes the nodes matching a filter on the calling thread. Nodes
+     * with a DSA subscriber are kept and subscribed to again.
+     *
+     * @param topic Topic filter, {@code #} or {@code +} remove everything.
+     * @param node Node the filter is relative to.
+     */
+    public void destroyTree(String topic, Node node) {
+        if (node == data) {
+            removeStored(topic);
+        }
+        teardown.run(node, topic);
+    }
+
+    /**
+     * Queues the removal of the data nodes matching a filter. The nodes
+     * are removed in the background a slice at a time, see
+     * {@link Teardown}.
+     *
+     * @param filter Topic filter, {@code #} or {@code +} remove everything.
+     * @param done Run once the nodes are removed, may be {@code null}.
+     */
+    void tearDown(String filter, Runnable done) {
+        removeStored(filter);
+        teardown.submit(data, filter, done);
+    }
+
+    private void removeStored(String filter) {
+        TopicStore store = this.store;
+        if (store == null) {
             return;
         }
+        if ("#".equals(filter) || "+".equals(filter)) {
+            store.clear();
+        } else {
+            store.removeMatching(filter);
+        }
+        invalidateTopicCache();
+    }
 
-        get(new Handler<MqttClient>() {
-            @Override
-            public void handle(MqttClient event) {
-                String fullTopic = tmp.getPath();
-                int length = data.getPath().length() + 1;
-                fullTopic = fullTopic.substring(length);
-                fullTopic = StringUtils.decodeName(fullTopic);
-                try {
-                    event.subscribe(fullTopic, getQos());
-                } catch (MqttException e) {
-                    throw new RuntimeException(e);
-                }
+    /**
+     * Drops every cached topic to node mapping. Must be called whenever
+     * nodes are removed from the data tree, before the tree lock is
+     * released.
+     */
+    void invalidateTopicCache() {
+        TopicCache<TopicEntry> cache = topicCache;
+        if (cache != null) {
+            for (TopicEntry entry : cache.values()) {
+                entry.supersede();
             }
-        });
+            cache.clear();
+        }
+    }
+
+    /**
+     * @param topic Topic name without wildcards.
+     * @return Whether a subscription already delivers the topic.
+     */
+    public boolean isSubscribed(String topic) {
+        return !filters.match(topic).isEmpty();
+    }
+
+    String getTopic(Node node) {
+        return getTopic(node.getPath());
     }
 
-    private boolean hasSub(Node node) {
+    /**
+     * @param path DSA path of a node below the data node.
+     * @return Topic the node stands for.
+     */
+    String getTopic(String path) {
+        String topic = path.substring(data.getPath().length() + 1);
+        if (topic.equals("%2f") || topic.startsWith("%2f/")) {
+            // Zero node of topics with a leading slash
+            topic = topic.substring(3);
+        }
+        return StringUtils.decodeName(topic);
+    }
+
+    boolean hasSub(Node node) {
         if (node == null) {
             return false;
         }
@@ -511,42 +1865,43 @@ public class Mqtt implements MqttCallback {
         }
 
         {
+            // Servers are set up right away so DSA requests find them,
+            // connecting is left to the startup
+            Startup startup = new Startup(superRoot);
             Map<String, Node> rootChildren = superRoot.getChildren();
-            ScheduledThreadPoolExecutor stpe = Objects.getDaemonThreadPool();
-            for (final Node child : rootChildren.values()) {
+            for (Node child : rootChildren.values()) {
                 if (child.getAction() != null
-                    || child.getWritable() != null 
-		    || child.isHidden()) {
+                        || child.getWritable() != null
+                        || child.isHidden()
+                        || child.getMetaData() instanceof Broker
+                        || child.getMetaData() instanceof Startup) {
                     continue;
                 }
-                stpe.execute(new Runnable() {
-                    @Override
-                    public void run() {
-                        try {
-			    LOGGER.info("Restoring connection to server '{}'", child.getName() );
-                            Mqtt mqtt = new Mqtt(child);
-                            mqtt.init();
+                try {
+                    LOGGER.info("Restoring connection to server '{}'", child.getName());
+                    Mqtt mqtt = new Mqtt(child);
+                    mqtt.init();
+                    startup.add(mqtt);
+                    mqtt.restoreSubscriptions();
 
-                            Map<String, Node> subs = mqtt.subs.getChildren();
-                            if (subs == null) {
-                                return;
-                            }
-                            mqtt.restoreSubscriptions();
-                            for (Node node : subs.values()) {
-                                String name = node.getName();
-                                NodeBuilder b = node.createChild("unsubscribe");
-                                b.setSerializable(false);
-                                b.setDisplayName("Unsubscribe");
-                                Action a = Actions.getUnsubscribeAction(mqtt, name);
-                                b.setAction(a);
-                                b.build();
-                            }
-                        } catch (Exception e) {
-                            LOGGER.warn("", e);
-                        }
+                    Map<String, Node> subs = mqtt.subs.getChildren();
+                    if (subs == null) {
+                        continue;
                     }
-                });
+                    for (Node node : subs.values()) {
+                        String name = node.getName();
+                        NodeBuilder b = node.createChild("unsubscribe");
+                        b.setSerializable(false);
+                        b.setDisplayName("Unsubscribe");
+                        Action a = Actions.getUnsubscribeAction(mqtt, name);
+                        b.setAction(a);
+                        b.build();
+                    }
+                } catch (Exception e) {
+                    LOGGER.warn("", e);
+                }
             }
+            startup.start();
         }
     }
 }
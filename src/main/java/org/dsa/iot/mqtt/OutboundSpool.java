@@ -0,0 +1,354 @@
+package org.dsa.iot.mqtt;
+
+import org.dsa.iot.dslink.util.Objects;
+import org.dsa.iot.dslink.util.handler.Handler;
+import org.dsa.iot.mqtt.utils.PayloadDecoder;
+import org.dsa.iot.mqtt.utils.SpoolFile;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Holds publishes made while the client is disconnected and drains them
+ * in order once it reconnects. Publishes made while the spool is still
+ * draining are spooled as well so ordering is kept. Messages are held in
+ * memory and optionally overflow to a file.
+ */
+class OutboundSpool {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(OutboundSpool.class);
+
+    public enum Policy {
+        DROP_OLDEST("dropOldest"),
+        DROP_NEWEST("dropNewest"),
+        BLOCK("block");
+
+        private final String name;
+
+        Policy(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public static Policy fromString(String s) {
+            for (Policy p : values()) {
+                if (p.name.equals(s)) {
+                    return p;
+                }
+            }
+            return DROP_OLDEST;
+        }
+
+        public static String[] names() {
+            Policy[] policies = values();
+            String[] names = new String[policies.length];
+            for (int i = 0; i < policies.length; i++) {
+                names[i] = policies[i].name;
+            }
+            return names;
+        }
+    }
+
+    private final Mqtt mqtt;
+    private final SpoolFile overflow;
+    private final ArrayDeque<Entry> memory = new ArrayDeque<>();
+
+    private int memoryLimit;
+    private int overflowLimit;
+    private Policy policy = Policy.DROP_OLDEST;
+    private double rate;
+
+    private boolean connected;
+    private boolean stopped;
+    private int generation;
+    private long dropped;
+
+    /**
+     * @param mqtt Server the spool drains into.
+     * @param overflowFile File used once the memory limit is reached.
+     */
+    OutboundSpool(Mqtt mqtt, File overflowFile) {
+        this.mqtt = mqtt;
+        this.overflow = new SpoolFile(overflowFile);
+    }
+
+    /**
+     * @param memoryLimit Maximum amount of messages held in memory.
+     * @param overflowLimit Maximum amount of messages held on disk, 0
+     *                      disables the overflow.
+     * @param policy What to do when the spool is full.
+     * @param rate Maximum messages per second published while draining,
+     *             0 drains as fast as the in-flight window allows.
+     */
+    synchronized void configure(int memoryLimit,
+                                int overflowLimit,
+                                Policy policy,
+                                double rate) {
+        this.memoryLimit = Math.max(memoryLimit, 1);
+        this.overflowLimit = Math.max(overflowLimit, 0);
+        this.policy = policy;
+        this.rate = Math.max(rate, 0);
+        notifyAll();
+    }
+
+    /**
+     * Spools the message unless it can be published right away.
+     *
+     * @return Whether the message was taken, or dropped, by the spool.
+     *         Otherwise it must be published directly.
+     */
+    boolean offer(String topic, MqttMessage msg) {
+        boolean drain;
+        synchronized (this) {
+            if (stopped || (connected && isEmpty())) {
+                return false;
+            }
+            while (isFull()) {
+                if (policy == Policy.DROP_NEWEST) {
+                    dropped++;
+                    return true;
+                } else if (policy == Policy.DROP_OLDEST) {
+                    poll();
+                    dropped++;
+                } else {
+                    try {
+                        wait();
+                        if (stopped) {
+                            return false;
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        dropped++;
+                        return true;
+                    }
+                }
+            }
+            drain = isEmpty();
+            add(new Entry(topic, msg));
+        }
+        if (drain) {
+            // Ensures a connection is being made while messages are waiting
+            scheduleDrain();
+        }
+        return true;
+    }
+
+    void setConnected(boolean connected) {
+        boolean drain;
+        synchronized (this) {
+            this.connected = connected;
+            drain = connected && !isEmpty();
+        }
+        if (drain) {
+            scheduleDrain();
+        }
+    }
+
+    synchronized int size() {
+        return memory.size() + overflow.size();
+    }
+
+    /**
+     * @return Age of the oldest spooled message in milliseconds.
+     */
+    synchronized long getOldestAge() {
+        Entry e = peek();
+        return e == null ? 0 : System.currentTimeMillis() - e.time;
+    }
+
+    synchronized long getDropped() {
+        return dropped;
+    }
+
+    synchronized void stop() {
+        stopped = true;
+        generation++;
+        memory.clear();
+        overflow.close();
+        notifyAll();
+    }
+
+    private void scheduleDrain() {
+        final int gen;
+        synchronized (this) {
+            if (stopped) {
+                return;
+            }
+            gen = ++generation;
+        }
+        Objects.getDaemonThreadPool().execute(new Runnable() {
+            @Override
+            public void run() {
+                mqtt.get(new Handler<MqttAsyncClient>() {
+                    @Override
+                    public void handle(final MqttAsyncClient event) {
+                        Objects.getDaemonThreadPool().execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                drain(event, gen);
+                            }
+                        });
+                    }
+                });
+            }
+        });
+    }
+
+    private void drain(MqttAsyncClient client, int gen) {
+        long interval;
+        synchronized (this) {
+            interval = rate > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / rate) : 0;
+        }
+        long next = System.nanoTime();
+        while (true) {
+            Entry e;
+            synchronized (this) {
+                if (gen != generation || !connected) {
+                    return;
+                }
+                e = peek();
+                if (e == null) {
+                    return;
+                }
+            }
+            if (interval > 0) {
+                long wait = next - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+                next = Math.max(next, System.nanoTime()) + interval;
+            }
+            try {
+                mqtt.publish(client, e.topic, e.toMessage(), null);
+            } catch (RuntimeException ex) {
+                LOGGER.warn("Failed to drain spool of '{}'", mqtt.getName(), ex);
+                Objects.getDaemonThreadPool().schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        scheduleDrain();
+                    }
+                }, 1, TimeUnit.SECONDS);
+                return;
+            }
+            synchronized (this) {
+                // The head may have been dropped while it was published
+                if (peek() == e) {
+                    poll();
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    private boolean isEmpty() {
+        return memory.isEmpty() && overflow.size() == 0;
+    }
+
+    private boolean isFull() {
+        if (memory.size() < memoryLimit && overflow.size() == 0) {
+            return false;
+        }
+        return overflow.size() >= overflowLimit;
+    }
+
+    private void add(Entry e) {
+        if (memory.size() < memoryLimit && overflow.size() == 0) {
+            memory.add(e);
+            return;
+        }
+        try {
+            overflow.append(e.serialize());
+        } catch (IOException ex) {
+            LOGGER.warn("Failed to overflow spool of '{}'", mqtt.getName(), ex);
+            dropped++;
+        }
+    }
+
+    private Entry peek() {
+        if (memory.isEmpty() && overflow.size() > 0) {
+            try {
+                memory.add(Entry.deserialize(overflow.poll()));
+            } catch (IOException ex) {
+                LOGGER.warn("Failed to read spool of '{}'", mqtt.getName(), ex);
+                overflow.close();
+                dropped++;
+            }
+        }
+        return memory.peek();
+    }
+
+    private void poll() {
+        if (peek() != null) {
+            memory.poll();
+        }
+    }
+
+    private static class Entry {
+
+        private final String topic;
+        private final byte[] payload;
+        private final int qos;
+        private final boolean retained;
+        private final long time;
+
+        Entry(String topic, MqttMessage msg) {
+            this(topic, msg.getPayload(), msg.getQos(),
+                    msg.isRetained(), System.currentTimeMillis());
+        }
+
+        private Entry(String topic,
+                      byte[] payload,
+                      int qos,
+                      boolean retained,
+                      long time) {
+            this.topic = topic;
+            this.payload = payload;
+            this.qos = qos;
+            this.retained = retained;
+            this.time = time;
+        }
+
+        MqttMessage toMessage() {
+            MqttMessage msg = new MqttMessage(payload);
+            msg.setQos(qos);
+            msg.setRetained(retained);
+            return msg;
+        }
+
+        byte[] serialize() {
+            byte[] t = topic.getBytes(PayloadDecoder.UTF_8);
+            ByteBuffer buf = ByteBuffer.allocate(8 + 2 + 4 + t.length + payload.length);
+            buf.putLong(time);
+            buf.put((byte) qos);
+            buf.put((byte) (retained ? 1 : 0));
+            buf.putInt(t.length);
+            buf.put(t);
+            buf.put(payload);
+            return buf.array();
+        }
+
+        static Entry deserialize(byte[] b) {
+            ByteBuffer buf = ByteBuffer.wrap(b);
+            long time = buf.getLong();
+            int qos = buf.get();
+            boolean retained = buf.get() != 0;
+            byte[] t = new byte[buf.getInt()];
+            buf.get(t);
+            byte[] payload = new byte[buf.remaining()];
+            buf.get(payload);
+            String topic = new String(t, PayloadDecoder.UTF_8);
+            return new Entry(topic, payload, qos, retained, time);
+        }
+    }
+}
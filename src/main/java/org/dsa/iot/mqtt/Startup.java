@@ -0,0 +1,206 @@
+package org.dsa.iot.mqtt;
+
+import org.dsa.iot.dslink.node.Node;
+import org.dsa.iot.dslink.node.value.Value;
+import org.dsa.iot.dslink.node.value.ValuePair;
+import org.dsa.iot.dslink.node.value.ValueType;
+import org.dsa.iot.dslink.util.Objects;
+import org.dsa.iot.dslink.util.handler.Handler;
+import org.dsa.iot.mqtt.utils.NodeUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Connects the servers restored when the link starts. Servers are set up
+ * right away with their connection held, then released a few at a time
+ * so the shared pool and the brokers are not flooded. Servers a DSA
+ * subscriber is waiting on are released first.
+ */
+class Startup {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(Startup.class);
+
+    private static final int DEFAULT_MAX_CONNECTS = 8;
+    private static final int DEFAULT_MAX_PER_HOST = 2;
+
+    /**
+     * Time a released server may take to connect before its slot is
+     * handed to the next server. The attempt itself carries on.
+     */
+    private static final long CONNECT_TIMEOUT = 30;
+
+    private final List<Mqtt> pending = new ArrayList<>();
+    private final Map<Mqtt, String> active = new HashMap<>();
+    private final Map<String, Integer> hosts = new HashMap<>();
+    private int total;
+    private long started;
+    private boolean finished;
+    private long firstValue;
+
+    private final Node maxConnects;
+    private final Node maxPerHost;
+    private final Node pendingNode;
+    private final Node connectingNode;
+    private final Node durationNode;
+    private final Node firstValueNode;
+
+    Startup(Node superRoot) {
+        Node folder = NodeUtils.getOrCreateFolder(superRoot, "startup", "Startup");
+        folder.setMetaData(this);
+        Handler<ValuePair> dispatch = new Handler<ValuePair>() {
+            @Override
+            public void handle(ValuePair event) {
+                dispatch();
+            }
+        };
+        maxConnects = NodeUtils.getOrCreateConfig(folder, "maxConnects",
+                "Max Concurrent Connects", ValueType.NUMBER,
+                new Value(DEFAULT_MAX_CONNECTS), dispatch);
+        maxPerHost = NodeUtils.getOrCreateConfig(folder, "maxPerHost",
+                "Max Connects Per Host", ValueType.NUMBER,
+                new Value(DEFAULT_MAX_PER_HOST), dispatch);
+        pendingNode = NodeUtils.createMetric(folder, "pending",
+                "Pending Servers", ValueType.NUMBER, new Value(0));
+        connectingNode = NodeUtils.createMetric(folder, "connecting",
+                "Connecting Servers", ValueType.NUMBER, new Value(0));
+        durationNode = NodeUtils.createMetric(folder, "duration",
+                "Startup Duration", ValueType.NUMBER, new Value((Number) null));
+        firstValueNode = NodeUtils.createMetric(folder, "firstValue",
+                "Time To First Value", ValueType.NUMBER, new Value((Number) null));
+    }
+
+    /**
+     * Holds the connection of a server until it is released.
+     */
+    synchronized void add(Mqtt mqtt) {
+        mqtt.holdConnection(this);
+        pending.add(mqtt);
+        total++;
+    }
+
+    /**
+     * Starts releasing the servers.
+     */
+    void start() {
+        synchronized (this) {
+            started = System.currentTimeMillis();
+            LOGGER.info("Connecting {} restored server(s)", total);
+        }
+        dispatch();
+    }
+
+    /**
+     * Releases as many pending servers as the limits allow, servers with
+     * DSA subscribers first.
+     */
+    synchronized void dispatch() {
+        if (started == 0) {
+            return;
+        }
+        int max = Math.max(NodeUtils.getInt(maxConnects, DEFAULT_MAX_CONNECTS), 1);
+        int perHost = Math.max(NodeUtils.getInt(maxPerHost, DEFAULT_MAX_PER_HOST), 1);
+        while (active.size() < max) {
+            Mqtt next = null;
+            String nextHost = null;
+            Iterator<Mqtt> it = pending.iterator();
+            while (it.hasNext()) {
+                Mqtt mqtt = it.next();
+                String host = hostOf(mqtt);
+                Integer count = hosts.get(host);
+                if (count != null && count >= perHost) {
+                    continue;
+                }
+                if (next == null || (mqtt.isDemanded() && !next.isDemanded())) {
+                    next = mqtt;
+                    nextHost = host;
+                    if (mqtt.isDemanded()) {
+                        break;
+                    }
+                }
+            }
+            if (next == null) {
+                break;
+            }
+            pending.remove(next);
+            release(next, nextHost);
+        }
+        pendingNode.setValue(new Value(pending.size()));
+        connectingNode.setValue(new Value(active.size()));
+        if (!finished && pending.isEmpty() && active.isEmpty()) {
+            finished = true;
+            long elapsed = System.currentTimeMillis() - started;
+            durationNode.setValue(new Value(elapsed / 1000.0));
+            LOGGER.info("Released {} restored server(s) in {}ms", total, elapsed);
+        }
+    }
+
+    /**
+     * Called when a held server connected or failed to connect.
+     */
+    synchronized void done(Mqtt mqtt) {
+        String host = active.remove(mqtt);
+        if (host == null) {
+            return;
+        }
+        Integer count = hosts.get(host);
+        if (count == null || count <= 1) {
+            hosts.remove(host);
+        } else {
+            hosts.put(host, count - 1);
+        }
+        dispatch();
+    }
+
+    /**
+     * Called the first time a server receives a message.
+     */
+    synchronized void firstValue(long time) {
+        if (firstValue == 0 && started > 0) {
+            firstValue = time;
+            firstValueNode.setValue(new Value((time - started) / 1000.0));
+        }
+    }
+
+    private void release(final Mqtt mqtt, String host) {
+        if (!mqtt.releaseConnection()) {
+            // Nothing to connect for until something asks for it
+            return;
+        }
+        active.put(mqtt, host);
+        Integer count = hosts.get(host);
+        hosts.put(host, count == null ? 1 : count + 1);
+        Objects.getDaemonThreadPool().schedule(new Runnable() {
+            @Override
+            public void run() {
+                done(mqtt);
+            }
+        }, CONNECT_TIMEOUT, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @return Host and port of the broker of a server.
+     */
+    private static String hostOf(Mqtt mqtt) {
+        String url = mqtt.getUrl();
+        if (url == null) {
+            return "";
+        }
+        try {
+            URI uri = new URI(url);
+            if (uri.getHost() != null) {
+                return uri.getHost().toLowerCase() + ":" + uri.getPort();
+            }
+        } catch (URISyntaxException ignored) {
+        }
+        return url;
+    }
+}
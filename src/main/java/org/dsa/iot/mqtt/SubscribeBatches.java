@@ -0,0 +1,217 @@
+package org.dsa.iot.mqtt;
+
+import org.dsa.iot.dslink.util.Objects;
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Subscribes to a list of filters using multi-topic SUBSCRIBE packets. Up
+ * to {@link #MAX_PENDING} packets are pipelined without blocking the
+ * caller. A batch that fails or gets no answer within {@link #TIMEOUT}
+ * seconds is split in halves and queued again, a single filter is retried
+ * up to {@link #MAX_ATTEMPTS} times. Filters the server refuses are
+ * logged.
+ */
+class SubscribeBatches {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SubscribeBatches.class);
+
+    static final int BATCH_SIZE = 100;
+    static final int MAX_PENDING = 8;
+    static final long TIMEOUT = 30;
+    static final int MAX_ATTEMPTS = 3;
+
+    /**
+     * Granted QoS of a filter the server refused.
+     */
+    private static final int FAILURE = 0x80;
+
+    private final MqttAsyncClient client;
+    private final Runnable done;
+    private final Deque<Batch> queue = new ArrayDeque<>();
+    private int pending;
+    private boolean pumping;
+    private boolean finished;
+
+    /**
+     * @param done Called once every batch succeeded or was given up on,
+     *             may be {@code null}.
+     */
+    SubscribeBatches(MqttAsyncClient client,
+                     String[] topics,
+                     int[] qos,
+                     Runnable done) {
+        this.client = client;
+        this.done = done;
+        for (int i = 0; i < topics.length; i += BATCH_SIZE) {
+            int end = Math.min(i + BATCH_SIZE, topics.length);
+            queue.add(new Batch(Arrays.copyOfRange(topics, i, end),
+                                Arrays.copyOfRange(qos, i, end), 0));
+        }
+    }
+
+    void start() {
+        pump();
+    }
+
+    /**
+     * Sends queued batches while there is room in the window. Completions
+     * arriving on the calling thread, or while another thread pumps, are
+     * picked up by the running loop instead of recursing.
+     */
+    private void pump() {
+        synchronized (this) {
+            if (pumping) {
+                return;
+            }
+            pumping = true;
+        }
+        boolean complete = false;
+        while (true) {
+            Batch batch;
+            synchronized (this) {
+                if (pending >= MAX_PENDING || queue.isEmpty()) {
+                    pumping = false;
+                    if (pending == 0 && queue.isEmpty() && !finished) {
+                        finished = true;
+                        complete = true;
+                    }
+                    break;
+                }
+                batch = queue.poll();
+                pending++;
+            }
+            send(batch);
+        }
+        if (complete && done != null) {
+            done.run();
+        }
+    }
+
+    private void send(final Batch batch) {
+        batch.timeout = Objects.getDaemonThreadPool().schedule(new Runnable() {
+            @Override
+            public void run() {
+                failed(batch, null);
+            }
+        }, TIMEOUT, TimeUnit.SECONDS);
+        try {
+            client.subscribe(batch.topics, batch.qos, null, new IMqttActionListener() {
+                @Override
+                public void onSuccess(IMqttToken token) {
+                    succeeded(batch, token == null ? null : token.getGrantedQos());
+                }
+
+                @Override
+                public void onFailure(IMqttToken token, Throwable t) {
+                    int[] granted = token == null ? null : token.getGrantedQos();
+                    if (granted != null && granted.length == batch.topics.length) {
+                        // Answered by the server, refused filters are
+                        // not worth retrying
+                        succeeded(batch, granted);
+                    } else {
+                        failed(batch, t);
+                    }
+                }
+            });
+        } catch (MqttException e) {
+            failed(batch, e);
+        }
+    }
+
+    private void succeeded(Batch batch, int[] granted) {
+        if (!finish(batch)) {
+            return;
+        }
+        if (granted != null) {
+            for (int i = 0; i < granted.length && i < batch.topics.length; i++) {
+                if (granted[i] == FAILURE) {
+                    LOGGER.warn("Server refused subscription to '{}'",
+                            batch.topics[i]);
+                }
+            }
+        }
+        pump();
+    }
+
+    /**
+     * @param t Cause of the failure, {@code null} if the batch timed out.
+     */
+    private void failed(Batch batch, Throwable t) {
+        if (!finish(batch)) {
+            return;
+        }
+        synchronized (this) {
+            if (!client.isConnected()) {
+                // Everything is subscribed to again after reconnecting
+                LOGGER.debug("Dropping {} subscribe batch(es), not connected",
+                        queue.size() + 1);
+                queue.clear();
+            } else if (batch.topics.length > 1) {
+                int half = batch.topics.length / 2;
+                int len = batch.topics.length;
+                queue.addFirst(new Batch(
+                        Arrays.copyOfRange(batch.topics, half, len),
+                        Arrays.copyOfRange(batch.qos, half, len),
+                        batch.attempts));
+                queue.addFirst(new Batch(
+                        Arrays.copyOfRange(batch.topics, 0, half),
+                        Arrays.copyOfRange(batch.qos, 0, half),
+                        batch.attempts));
+            } else if (batch.attempts + 1 < MAX_ATTEMPTS) {
+                queue.addFirst(new Batch(batch.topics, batch.qos,
+                                         batch.attempts + 1));
+            } else if (t == null) {
+                LOGGER.warn("Timed out subscribing to '{}'", batch.topics[0]);
+            } else {
+                LOGGER.warn("Failed to subscribe to '{}'", batch.topics[0], t);
+            }
+        }
+        pump();
+    }
+
+    /**
+     * Frees the slot of a batch, once.
+     *
+     * @return Whether the batch was still pending.
+     */
+    private boolean finish(Batch batch) {
+        synchronized (this) {
+            if (batch.finished) {
+                return false;
+            }
+            batch.finished = true;
+            pending--;
+        }
+        ScheduledFuture<?> timeout = batch.timeout;
+        if (timeout != null) {
+            timeout.cancel(false);
+        }
+        return true;
+    }
+
+    private static class Batch {
+
+        private final String[] topics;
+        private final int[] qos;
+        private final int attempts;
+        private boolean finished;
+        private volatile ScheduledFuture<?> timeout;
+
+        Batch(String[] topics, int[] qos, int attempts) {
+            this.topics = topics;
+            this.qos = qos;
+            this.attempts = attempts;
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package org.dsa.iot.mqtt;
+
+import org.dsa.iot.dslink.node.Node;
+import org.dsa.iot.dslink.node.value.Value;
+import org.dsa.iot.dslink.node.value.ValueType;
+import org.dsa.iot.mqtt.utils.NodeUtils;
+import org.dsa.iot.mqtt.utils.PayloadDecoder;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Options of a subscription. The options are stored in the config of the
+ * subscription node so they survive restarts.
+ */
+public class Subscription {
+
+    /**
+     * Config keys of the options a subscription can be created with.
+     */
+    public static final String[] OPTIONS = {
+            "decode",
+            "expandJson",
+            "dedup",
+            "deadband",
+            "minInterval",
+            "conflate",
+            "qos",
+            "ignoreRetained"
+    };
+
+    private final String name;
+    private final String topic;
+    private final PayloadDecoder.Mode decode;
+    private final boolean expandJson;
+    private final boolean dedup;
+    private final double deadband;
+    private final long minInterval;
+    private final long conflate;
+    private final int qos;
+    private final boolean ignoreRetained;
+
+    private final AtomicLong duplicates = new AtomicLong();
+    private final AtomicLong withinDeadband = new AtomicLong();
+    private final AtomicLong withinInterval = new AtomicLong();
+    private Node duplicatesNode;
+    private Node deadbandNode;
+    private Node intervalNode;
+
+    private final Queue<TopicEntry> dirty = new ConcurrentLinkedQueue<>();
+    private final AtomicLong conflated = new AtomicLong();
+    private Node conflatedNode;
+    private ScheduledFuture<?> flushFuture;
+
+    public Subscription(Node node) {
+        this.name = node.getName();
+        this.topic = node.getValue().getString();
+
+        Value v = node.getRoConfig("decode");
+        this.decode = PayloadDecoder.Mode.fromString(v == null ? null : v.getString());
+
+        v = node.getRoConfig("expandJson");
+        this.expandJson = v != null && v.getBool();
+
+        v = node.getRoConfig("dedup");
+        this.dedup = v != null && v.getBool();
+
+        v = node.getRoConfig("deadband");
+        this.deadband = v == null || v.getNumber() == null ? 0 : v.getNumber().doubleValue();
+
+        v = node.getRoConfig("minInterval");
+        this.minInterval = v == null || v.getNumber() == null ? 0 : v.getNumber().longValue();
+
+        v = node.getRoConfig("conflate");
+        this.conflate = v == null || v.getNumber() == null ? 0 : v.getNumber().longValue();
+
+        v = node.getRoConfig("qos");
+        int qos = v == null || v.getNumber() == null ? -1 : v.getNumber().intValue();
+        this.qos = qos < 0 ? -1 : Math.min(qos, 2);
+
+        v = node.getRoConfig("ignoreRetained");
+        this.ignoreRetained = v != null && v.getBool();
+
+        if (conflate > 0) {
+            conflatedNode = NodeUtils.createMetric(node, "conflated",
+                    "Conflated", ValueType.NUMBER, new Value(0));
+        }
+        if (hasFilters()) {
+            duplicatesNode = NodeUtils.createMetric(node, "suppressedDuplicates",
+                    "Suppressed Duplicates", ValueType.NUMBER, new Value(0));
+            deadbandNode = NodeUtils.createMetric(node, "suppressedDeadband",
+                    "Suppressed By Deadband", ValueType.NUMBER, new Value(0));
+            intervalNode = NodeUtils.createMetric(node, "suppressedInterval",
+                    "Suppressed By Interval", ValueType.NUMBER, new Value(0));
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getTopic() {
+        return topic;
+    }
+
+    public PayloadDecoder.Mode getDecode() {
+        return decode;
+    }
+
+    public boolean isExpandJson() {
+        return expandJson;
+    }
+
+    public boolean isDedup() {
+        return dedup;
+    }
+
+    /**
+     * @return Minimum numeric change required to update a topic, 0 if
+     *         disabled.
+     */
+    public double getDeadband() {
+        return deadband;
+    }
+
+    /**
+     * @return Minimum time in milliseconds between updates of a topic, 0
+     *         if disabled.
+     */
+    public long getMinInterval() {
+        return minInterval;
+    }
+
+    /**
+     * @return Interval in milliseconds at which the latest payload of
+     *         each topic is applied, 0 if every payload is applied.
+     */
+    public long getConflateInterval() {
+        return conflate;
+    }
+
+    /**
+     * @return QoS the filter is subscribed with, -1 to use the default
+     *         QoS of the server.
+     */
+    public int getQos() {
+        return qos;
+    }
+
+    /**
+     * @return Whether retained messages the broker sends when subscribing
+     *         are dropped, only live messages update the topics.
+     */
+    public boolean isIgnoreRetained() {
+        return ignoreRetained;
+    }
+
+    public boolean hasFilters() {
+        return dedup || deadband > 0 || minInterval > 0;
+    }
+
+    void markDirty(TopicEntry entry) {
+        dirty.add(entry);
+    }
+
+    TopicEntry pollDirty() {
+        return dirty.poll();
+    }
+
+    void conflated() {
+        conflated.incrementAndGet();
+    }
+
+    synchronized void setFlushFuture(ScheduledFuture<?> future) {
+        flushFuture = future;
+    }
+
+    /**
+     * Stops flushing conflated payloads.
+     */
+    synchronized void stop() {
+        if (flushFuture != null) {
+            flushFuture.cancel(false);
+            flushFuture = null;
+        }
+        dirty.clear();
+    }
+
+    void suppressedDuplicate() {
+        duplicates.incrementAndGet();
+    }
+
+    void suppressedDeadband() {
+        withinDeadband.incrementAndGet();
+    }
+
+    void suppressedInterval() {
+        withinInterval.incrementAndGet();
+    }
+
+    /**
+     * Publishes the filter counters to their nodes.
+     */
+    void updateStats() {
+        if (conflatedNode != null) {
+            conflatedNode.setValue(new Value(conflated.get()));
+        }
+        if (duplicatesNode == null) {
+            return;
+        }
+        duplicatesNode.setValue(new Value(duplicates.get()));
+        deadbandNode.setValue(new Value(withinDeadband.get()));
+        intervalNode.setValue(new Value(withinInterval.get()));
+    }
+}
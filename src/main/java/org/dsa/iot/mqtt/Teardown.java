@@ -0,0 +1,332 @@
+package org.dsa.iot.mqtt;
+
+import org.dsa.iot.dslink.node.Node;
+import org.dsa.iot.dslink.node.NodeManager;
+import org.dsa.iot.dslink.node.value.Value;
+import org.dsa.iot.dslink.util.Objects;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Removes the nodes of the data tree matching a topic filter. The tree is
+ * walked with an explicit stack so deep hierarchies never overflow the
+ * thread stack. Queued jobs run one at a time on the daemon pool in slices
+ * of at most {@link #SLICE_MILLIS} holding the tree lock, so ingest can
+ * create nodes for other topics between slices.
+ */
+class Teardown {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(Teardown.class);
+
+    static final long SLICE_MILLIS = 10;
+
+    /**
+     * Delay between slices, gives threads waiting on the tree lock a
+     * chance to take it.
+     */
+    private static final long PAUSE_MILLIS = 1;
+
+    /**
+     * Amount of nodes visited between checks of the slice deadline.
+     */
+    private static final int CHECK_INTERVAL = 64;
+
+    private static final int SWEEP = -1;
+    private static final int SWEPT = -2;
+
+    private final Mqtt mqtt;
+    private final Object treeLock;
+    private final Queue<Job> jobs = new ArrayDeque<>();
+    private final AtomicLong removed = new AtomicLong();
+    private volatile Job current;
+
+    private final Runnable step = new Runnable() {
+        @Override
+        public void run() {
+            Job job = current;
+            if (job == null) {
+                return;
+            }
+            boolean done;
+            try {
+                done = job.slice(System.nanoTime()
+                        + TimeUnit.MILLISECONDS.toNanos(SLICE_MILLIS));
+            } catch (RuntimeException e) {
+                LOGGER.warn("Failed to tear down '{}'", job.filter, e);
+                done = true;
+            }
+            if (done) {
+                try {
+                    job.finish();
+                } catch (RuntimeException e) {
+                    LOGGER.warn("Failed to finish tearing down '{}'", job.filter, e);
+                }
+                synchronized (Teardown.this) {
+                    if (current != job) {
+                        return;
+                    }
+                    current = jobs.poll();
+                    if (current == null) {
+                        return;
+                    }
+                }
+            }
+            schedule();
+        }
+    };
+
+    Teardown(Mqtt mqtt, Object treeLock) {
+        this.mqtt = mqtt;
+        this.treeLock = treeLock;
+    }
+
+    /**
+     * Queues the removal of the nodes matching a filter.
+     *
+     * @param root Node the filter is relative to.
+     * @param filter Topic filter, {@code #} or {@code +} remove everything.
+     * @param done Run once the nodes are removed, may be {@code null}.
+     */
+    void submit(Node root, String filter, Runnable done) {
+        Job job = new Job(root, filter, done);
+        synchronized (this) {
+            if (current != null) {
+                jobs.add(job);
+                return;
+            }
+            current = job;
+        }
+        schedule();
+    }
+
+    /**
+     * Removes the nodes matching a filter on the calling thread, holding
+     * the tree lock throughout.
+     */
+    void run(Node root, String filter) {
+        Job job = new Job(root, filter, null);
+        job.slice(Long.MAX_VALUE);
+        job.finish();
+    }
+
+    /**
+     * Drops every queued job, the running slice completes.
+     */
+    synchronized void stop() {
+        jobs.clear();
+        current = null;
+    }
+
+    /**
+     * @return Filter being torn down or {@code null} when idle.
+     */
+    String getCurrentFilter() {
+        Job job = current;
+        return job == null ? null : job.filter;
+    }
+
+    /**
+     * @return Nodes visited by the running job.
+     */
+    long getVisited() {
+        Job job = current;
+        return job == null ? 0 : job.visited;
+    }
+
+    synchronized int getQueued() {
+        return jobs.size() + (current == null ? 0 : 1);
+    }
+
+    /**
+     * @return Nodes removed by every job so far.
+     */
+    long getRemoved() {
+        return removed.get();
+    }
+
+    private void schedule() {
+        Objects.getDaemonThreadPool().schedule(step, PAUSE_MILLIS,
+                                                TimeUnit.MILLISECONDS);
+    }
+
+    private static boolean isPreserved(Node node) {
+        Value value = node.getRoConfig("preserve");
+        return value != null && value.getBool();
+    }
+
+    private static boolean isEmpty(Node node) {
+        Map<String, Node> children = node.getChildren();
+        return children == null || children.isEmpty();
+    }
+
+    private class Job {
+
+        private final Node root;
+        private final String filter;
+        private final String[] parts;
+        private final Runnable done;
+        private final Deque<Frame> stack = new ArrayDeque<>();
+        private final Map<String, Integer> resubscribe = new LinkedHashMap<>();
+        private volatile long visited;
+
+        Job(Node root, String filter, Runnable done) {
+            this.root = root;
+            this.filter = filter;
+            this.done = done;
+            if ("#".equals(filter) || "+".equals(filter)) {
+                parts = null;
+                stack.push(new Frame(root, SWEEP));
+            } else {
+                parts = NodeManager.splitPath(filter);
+                stack.push(new Frame(root, 0));
+            }
+        }
+
+        /**
+         * Processes nodes until the deadline passes.
+         *
+         * @return Whether the job is complete.
+         */
+        boolean slice(long deadline) {
+            synchronized (treeLock) {
+                long before = removed.get();
+                int count = 0;
+                try {
+                    while (!stack.isEmpty()) {
+                        process(stack.pop());
+                        visited++;
+                        if (++count % CHECK_INTERVAL == 0
+                                && System.nanoTime() > deadline) {
+                            break;
+                        }
+                    }
+                } finally {
+                    // Still under the lock, entries are only cached under
+                    // it so later ones resolve against the pruned tree
+                    if (removed.get() != before) {
+                        mqtt.invalidateTopicCache();
+                    }
+                }
+                return stack.isEmpty();
+            }
+        }
+
+        void finish() {
+            try {
+                if (!resubscribe.isEmpty()) {
+                    mqtt.subscribeAll(resubscribe);
+                }
+            } finally {
+                if (done != null) {
+                    done.run();
+                }
+            }
+        }
+
+        private void process(Frame frame) {
+            Node node = frame.node;
+            if (node != root) {
+                Node parent = node.getParent();
+                if (parent == null || parent.getChild(node.getName()) != node) {
+                    // Removed since it was queued
+                    return;
+                }
+            }
+
+            if (frame.index == SWEEP) {
+                if (mqtt.hasSub(node)) {
+                    target(node);
+                    return;
+                }
+                stack.push(new Frame(node, SWEPT));
+                Map<String, Node> children = node.getChildren();
+                if (children != null) {
+                    for (Node child : children.values()) {
+                        if (!mqtt.hasSub(child)) {
+                            stack.push(new Frame(child, SWEEP));
+                        }
+                    }
+                }
+            } else if (frame.index == SWEPT) {
+                if (node != root && isEmpty(node)
+                        && !(mqtt.hasSub(node) || isPreserved(node))) {
+                    remove(node);
+                }
+            } else if (frame.index >= parts.length) {
+                target(node);
+            } else {
+                String part = parts[frame.index];
+                if ("#".equals(part)) {
+                    stack.push(new Frame(node, SWEEP));
+                } else if ("+".equals(part)) {
+                    Map<String, Node> children = node.getChildren();
+                    if (children != null) {
+                        for (Node child : children.values()) {
+                            stack.push(new Frame(child, frame.index + 1));
+                        }
+                    }
+                } else {
+                    Node child = node.getChild(part);
+                    if (child != null) {
+                        stack.push(new Frame(child, frame.index + 1));
+                    }
+                }
+            }
+        }
+
+        /**
+         * Removes a node matching the filter along with the parents it
+         * leaves empty. Nodes with a DSA subscriber are kept and their
+         * topic is subscribed to again.
+         */
+        private void target(Node node) {
+            if (mqtt.hasSub(node)) {
+                String topic = mqtt.getTopic(node);
+                if (!mqtt.isSubscribed(topic)) {
+                    resubscribe.put(topic, mqtt.getQos());
+                }
+                return;
+            } else if (node == root) {
+                return;
+            }
+            Node parent = node.getParent();
+            remove(node);
+            while (parent != null && parent != root && isEmpty(parent)
+                    && !(mqtt.hasSub(parent) || isPreserved(parent))) {
+                Node next = parent.getParent();
+                remove(parent);
+                parent = next;
+            }
+        }
+
+        private void remove(Node node) {
+            node.getParent().removeChild(node);
+            removed.incrementAndGet();
+        }
+    }
+
+    private static class Frame {
+
+        private final Node node;
+
+        /**
+         * Level of the filter the node is matched against, or
+         * {@link #SWEEP} and {@link #SWEPT} when removing everything
+         * below the node.
+         */
+        private final int index;
+
+        Frame(Node node, int index) {
+            this.node = node;
+            this.index = index;
+        }
+    }
+}
@@ -0,0 +1,364 @@
+package org.dsa.iot.mqtt;
+
+import org.dsa.iot.dslink.node.Node;
+import org.dsa.iot.dslink.node.NodeBuilder;
+import org.dsa.iot.dslink.node.value.Value;
+import org.dsa.iot.dslink.node.value.ValueType;
+import org.dsa.iot.mqtt.utils.JsonFlattener;
+import org.dsa.iot.mqtt.utils.PayloadDecoder;
+import org.dsa.iot.mqtt.utils.PayloadDecoder.Mode;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Per-topic state of the ingest path. The filter and JSON expansion state
+ * is only touched by one thread at a time, the ingest worker that owns
+ * the topic or the conflation flush of its subscription. The decoding
+ * mode is also read by DSA threads writing to the node.
+ */
+class TopicEntry implements JsonFlattener.Visitor {
+
+    final String topic;
+
+    /**
+     * Node of the topic, {@code null} while the topic only lives in the
+     * topic store.
+     */
+    final Node node;
+    final Subscription sub;
+    private final Object treeLock;
+
+    /**
+     * Concrete decoding mode, resolved from the payload when the
+     * subscription decodes automatically.
+     */
+    private volatile Mode mode;
+
+    /**
+     * Fields of expanded JSON payloads by their path.
+     */
+    private Map<String, Field> fields;
+
+    /**
+     * Fields of the payload being expanded that changed, applied once the
+     * whole payload parsed.
+     */
+    private List<Update> updates;
+
+    /**
+     * State of the last payload that passed the subscription filters.
+     */
+    private long lastHash;
+    private int lastLength = -1;
+    private double lastNumber = Double.NaN;
+    private long lastUpdate;
+
+    /**
+     * Time the topic was last moved to the tail of the {@link IdleIndex}.
+     */
+    volatile long indexed;
+
+    /**
+     * Time the topic was last found not evictable, guarded by the
+     * {@link IdleIndex}.
+     */
+    long kept;
+
+    /**
+     * Latest payload not yet applied when the subscription conflates or
+     * its minimum interval deferred the payload.
+     */
+    private final AtomicReference<byte[]> pending = new AtomicReference<>();
+
+    /**
+     * Set once the entry was dropped from the topic cache, for instance
+     * because the topic got a node. Payloads of a topic without a node
+     * are then no longer put in the topic store without the tree lock.
+     */
+    private volatile boolean superseded;
+
+    TopicEntry(String topic, Node node, Subscription sub, Object treeLock) {
+        this.topic = topic;
+        this.node = node;
+        this.sub = sub;
+        this.treeLock = treeLock;
+        Mode mode = sub == null ? Mode.STRING : sub.getDecode();
+        if (mode != Mode.AUTO) {
+            this.mode = mode;
+        }
+    }
+
+    /**
+     * @return Type the node of the topic starts out with.
+     */
+    ValueType getValueType() {
+        Mode current = mode;
+        return PayloadDecoder.typeOf(current == null ? Mode.STRING : current);
+    }
+
+    /**
+     * @return Whether the decoding mode is known, automatically decoded
+     *         topics are only resolved by their first payload.
+     */
+    boolean isResolved() {
+        return mode != null;
+    }
+
+    void supersede() {
+        superseded = true;
+    }
+
+    boolean isSuperseded() {
+        return superseded;
+    }
+
+    /**
+     * Decodes a payload, adjusting the type of the node when the payload
+     * type is first resolved or changes.
+     *
+     * @return Decoded value or {@code null} if the payload should be
+     *         ignored.
+     */
+    Value decode(byte[] payload) {
+        Mode current = mode;
+        if (current == null) {
+            current = classify(payload);
+        }
+        Value v = PayloadDecoder.decode(current, payload);
+        if (v == null && sub != null && sub.getDecode() == Mode.AUTO) {
+            current = classify(payload);
+            v = PayloadDecoder.decode(current, payload);
+        }
+        return v;
+    }
+
+    /**
+     * Converts a value written to the node back into a payload.
+     *
+     * @return Payload or {@code null} if the value cannot be published.
+     */
+    byte[] encode(Value value) {
+        Mode current = mode;
+        return PayloadDecoder.encode(current == null ? Mode.STRING : current, value);
+    }
+
+    /**
+     * Replaces the pending payload of a conflated or deferred topic.
+     *
+     * @return Whether the topic was clean and must be queued for the
+     *         next flush or trailing update.
+     */
+    boolean offer(byte[] payload) {
+        return pending.getAndSet(payload) == null;
+    }
+
+    /**
+     * Puts a payload taken by a flush back unless a newer one is pending.
+     *
+     * @return Whether the payload was put back.
+     */
+    boolean restore(byte[] payload) {
+        return pending.compareAndSet(null, payload);
+    }
+
+    /**
+     * @return The latest pending payload, or {@code null} if it was
+     *         already flushed.
+     */
+    byte[] takePending() {
+        return pending.getAndSet(null);
+    }
+
+    /**
+     * Runs a payload through the filters of the subscription.
+     *
+     * @return Whether the payload should be applied to the node.
+     */
+    boolean accept(byte[] payload, long now) {
+        Subscription sub = this.sub;
+        if (sub == null || !sub.hasFilters()) {
+            return true;
+        }
+
+        long hash = 0;
+        if (sub.isDedup()) {
+            hash = hash(payload);
+            if (payload.length == lastLength && hash == lastHash) {
+                sub.suppressedDuplicate();
+                return false;
+            }
+        }
+
+        double number = Double.NaN;
+        double deadband = sub.getDeadband();
+        if (deadband > 0) {
+            Number n = PayloadDecoder.parseNumber(payload);
+            if (n != null) {
+                number = n.doubleValue();
+                if (Math.abs(number - lastNumber) < deadband) {
+                    sub.suppressedDeadband();
+                    return false;
+                }
+            }
+        }
+
+        long interval = sub.getMinInterval();
+        if (interval > 0 && now - lastUpdate < interval) {
+            sub.suppressedInterval();
+            return false;
+        }
+
+        lastHash = hash;
+        lastLength = payload.length;
+        lastNumber = number;
+        lastUpdate = now;
+        return true;
+    }
+
+    /**
+     * @return Time until the minimum interval of the subscription allows
+     *         the next update, 0 if it already does.
+     */
+    long getIntervalRemaining(long now) {
+        Subscription sub = this.sub;
+        long interval = sub == null ? 0 : sub.getMinInterval();
+        return interval <= 0 ? 0 : Math.max(lastUpdate + interval - now, 0);
+    }
+
+    /**
+     * 64-bit FNV-1a hash of a payload.
+     */
+    private static long hash(byte[] payload) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : payload) {
+            hash ^= b & 0xFF;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * Expands a JSON payload into child nodes of the topic node. Only
+     * fields whose raw value changed since the last payload are decoded
+     * and updated, and only once the whole payload parsed.
+     *
+     * @return Whether the payload was a JSON object or array.
+     */
+    boolean expand(byte[] payload) {
+        if (fields == null) {
+            fields = new HashMap<>();
+            updates = new ArrayList<>();
+        }
+        try {
+            if (!JsonFlattener.flatten(payload, this)) {
+                // Nothing is applied from a payload that is not valid JSON
+                return false;
+            }
+            for (Update u : updates) {
+                Field field = fields.get(u.path);
+                if (field == null) {
+                    field = new Field(createField(u.path));
+                    fields.put(u.path, field);
+                }
+                field.last = Arrays.copyOfRange(payload, u.start, u.end);
+                field.node.setValue(decodeField(payload, u.start, u.end, u.kind));
+            }
+            return true;
+        } finally {
+            updates.clear();
+        }
+    }
+
+    @Override
+    public void onValue(String path,
+                        byte[] buf,
+                        int start,
+                        int end,
+                        JsonFlattener.Kind kind) {
+        Field field = fields.get(path);
+        if (field == null || !field.matches(buf, start, end)) {
+            updates.add(new Update(path, start, end, kind));
+        }
+    }
+
+    private Node createField(String path) {
+        synchronized (treeLock) {
+            Node n = node;
+            for (String name : path.split("/")) {
+                NodeBuilder b = n.createChild(name);
+                b.setSerializable(false);
+                n = b.build();
+            }
+            n.setValueType(ValueType.DYNAMIC);
+            return n;
+        }
+    }
+
+    private static Value decodeField(byte[] buf,
+                                     int start,
+                                     int end,
+                                     JsonFlattener.Kind kind) {
+        switch (kind) {
+            case NUMBER:
+                return new Value(PayloadDecoder.parseNumber(buf, start, end));
+            case BOOL:
+                return new Value(buf[start] == 't');
+            case STRING:
+                return new Value(JsonFlattener.decodeString(buf, start, end));
+            default:
+                return new Value((String) null);
+        }
+    }
+
+    private Mode classify(byte[] payload) {
+        Mode resolved = PayloadDecoder.classify(payload);
+        if (resolved != mode) {
+            mode = resolved;
+            node.setValueType(PayloadDecoder.typeOf(resolved));
+        }
+        return resolved;
+    }
+
+    private static class Update {
+
+        private final String path;
+        private final int start;
+        private final int end;
+        private final JsonFlattener.Kind kind;
+
+        Update(String path, int start, int end, JsonFlattener.Kind kind) {
+            this.path = path;
+            this.start = start;
+            this.end = end;
+            this.kind = kind;
+        }
+    }
+
+    private static class Field {
+
+        private final Node node;
+        private byte[] last;
+
+        Field(Node node) {
+            this.node = node;
+        }
+
+        boolean matches(byte[] buf, int start, int end) {
+            byte[] last = this.last;
+            if (last == null || last.length != end - start) {
+                return false;
+            }
+            for (int i = 0; i < last.length; i++) {
+                if (last[i] != buf[start + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
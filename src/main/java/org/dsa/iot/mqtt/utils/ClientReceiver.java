@@ -1,57 +1,305 @@
 package org.dsa.iot.mqtt.utils;
 
-import org.dsa.iot.commons.GuaranteedReceiver;
+import org.dsa.iot.dslink.util.Objects;
 import org.dsa.iot.dslink.util.URLInfo;
+import org.dsa.iot.dslink.util.handler.Handler;
 import org.dsa.iot.mqtt.Mqtt;
-import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
 import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
 import org.eclipse.paho.client.mqttv3.MqttException;
-import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javax.net.ssl.SSLSocketFactory;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 /**
+ * Owns the client of a server and the connection state machine around
+ * it. Operations requested while no client is connected are parked and
+ * run once the single outstanding connect attempt succeeds. Failed
+ * attempts are retried with jittered exponential backoff so many links
+ * losing the same broker do not reconnect in lockstep.
+ *
  * @author Samuel Grenier
  */
-public class ClientReceiver extends GuaranteedReceiver<MqttClient> {
+public class ClientReceiver {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(ClientReceiver.class);
 
+    public enum State {
+        /**
+         * No connection has been requested yet.
+         */
+        IDLE,
+        CONNECTING,
+        CONNECTED,
+        BACKOFF,
+        CLOSED
+    }
+
+    private final Random random = new Random();
+    private final Queue<Handler<MqttAsyncClient>> pending = new ArrayDeque<>();
     private final Mqtt callback;
 
+    private State state = State.IDLE;
+    private boolean held;
+    private long stateChanged = System.currentTimeMillis();
+    private MqttAsyncClient client;
+    private ScheduledFuture<?> attempt;
+    private int failures;
+    private long connects;
+    private long lastLatency;
+
     public ClientReceiver(Mqtt callback) {
-        super(5);
         this.callback = callback;
     }
 
-    @Override
-    protected MqttClient instantiate() throws Exception {
+    /**
+     * Runs the handler with the connected client, on the calling thread
+     * if a client is connected. Otherwise the handler is parked until
+     * the next connect attempt succeeds.
+     */
+    public void get(Handler<MqttAsyncClient> handler) {
+        MqttAsyncClient client;
+        synchronized (this) {
+            if (state == State.CLOSED) {
+                LOGGER.debug("Dropping operation on closed connection");
+                return;
+            } else if (state != State.CONNECTED) {
+                pending.add(handler);
+                if (state == State.IDLE && !held) {
+                    schedule(0);
+                }
+                return;
+            }
+            client = this.client;
+        }
+        run(client, handler, true);
+    }
+
+    /**
+     * Keeps the first connect attempt from being made until
+     * {@link #release()} is called. Operations are parked meanwhile.
+     */
+    public synchronized void hold() {
+        held = true;
+    }
+
+    /**
+     * Allows connecting again, starting an attempt if operations were
+     * parked while held.
+     *
+     * @return Whether a connect attempt was started.
+     */
+    public synchronized boolean release() {
+        held = false;
+        if (state == State.IDLE && !pending.isEmpty()) {
+            schedule(0);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Called when the connected client lost its connection.
+     */
+    public void connectionLost() {
+        MqttAsyncClient old;
+        synchronized (this) {
+            if (state != State.CONNECTED) {
+                return;
+            }
+            old = client;
+            client = null;
+            // Spreads out reconnects of links that lost the same broker
+            long delay = (long) (random.nextDouble() * callback.getMinBackoff());
+            schedule(delay);
+        }
+        close(old);
+    }
+
+    /**
+     * Closes the connection state machine. Parked operations are dropped
+     * and no further connect attempts are made.
+     *
+     * @return The client that was connected, if any.
+     */
+    public synchronized MqttAsyncClient shutdown() {
+        setState(State.CLOSED);
+        if (attempt != null) {
+            attempt.cancel(false);
+            attempt = null;
+        }
+        pending.clear();
+        MqttAsyncClient client = this.client;
+        this.client = null;
+        return client;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * @return Time spent in the current state in milliseconds.
+     */
+    public synchronized long getTimeInState() {
+        return System.currentTimeMillis() - stateChanged;
+    }
+
+    /**
+     * @return Amount of successful connects after the first one.
+     */
+    public synchronized long getReconnects() {
+        return Math.max(connects - 1, 0);
+    }
+
+    /**
+     * @return Duration of the last successful connect in milliseconds.
+     */
+    public synchronized long getLastConnectLatency() {
+        return lastLatency;
+    }
+
+    private void schedule(long delay) {
+        if (state != State.BACKOFF) {
+            setState(State.BACKOFF);
+        }
+        attempt = Objects.getDaemonThreadPool().schedule(new Runnable() {
+            @Override
+            public void run() {
+                connect();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void connect() {
+        synchronized (this) {
+            if (state != State.BACKOFF) {
+                return;
+            }
+            attempt = null;
+            setState(State.CONNECTING);
+        }
+
+        long start = System.currentTimeMillis();
+        MqttAsyncClient client;
+        try {
+            client = instantiate();
+        } catch (Exception e) {
+            synchronized (this) {
+                if (state != State.CONNECTING) {
+                    return;
+                }
+                long delay = nextDelay(failures++);
+                LOGGER.warn("Failed to connect to {}, retrying in {}ms ({})",
+                        callback.getUrl(), delay, e.getMessage());
+                schedule(delay);
+            }
+            callback.onConnectFailed(e);
+            return;
+        }
+
+        Queue<Handler<MqttAsyncClient>> handlers;
+        synchronized (this) {
+            if (state != State.CONNECTING) {
+                // Shut down while connecting
+                close(client);
+                return;
+            }
+            this.client = client;
+            failures = 0;
+            connects++;
+            lastLatency = System.currentTimeMillis() - start;
+            setState(State.CONNECTED);
+            handlers = new ArrayDeque<>(pending);
+            pending.clear();
+        }
+        LOGGER.info("Opened connection to MQTT at {}", callback.getUrl());
+        callback.onConnected();
+
+        Handler<MqttAsyncClient> h;
+        while ((h = handlers.poll()) != null) {
+            run(client, h, false);
+        }
+    }
+
+    /**
+     * Runs a handler. Handlers failing because the connection died are
+     * parked again for the next connection.
+     *
+     * @param rethrow Whether other failures are passed to the caller.
+     */
+    private void run(MqttAsyncClient client,
+                     Handler<MqttAsyncClient> handler,
+                     boolean rethrow) {
+        try {
+            handler.handle(client);
+        } catch (RuntimeException e) {
+            if (isConnectionError(e)) {
+                synchronized (this) {
+                    if (state != State.CLOSED) {
+                        pending.add(handler);
+                    }
+                }
+                connectionLost();
+            } else if (rethrow) {
+                throw e;
+            } else {
+                LOGGER.warn("Failed to run operation on {}", callback.getUrl(), e);
+            }
+        }
+    }
+
+    /**
+     * @param failures Amount of consecutive failed attempts.
+     * @return Delay before the next attempt, between half and the full
+     *         exponential backoff.
+     */
+    private long nextDelay(int failures) {
+        long min = Math.max(callback.getMinBackoff(), 1);
+        long max = Math.max(callback.getMaxBackoff(), min);
+        long delay = min << Math.min(failures, 30);
+        if (delay <= 0 || delay > max) {
+            delay = max;
+        }
+        return delay / 2 + (long) (random.nextDouble() * (delay / 2));
+    }
+
+    private void setState(State state) {
+        boolean wasConnected = this.state == State.CONNECTED;
+        this.state = state;
+        this.stateChanged = System.currentTimeMillis();
+        if (wasConnected && state != State.CONNECTED) {
+            callback.setStatus(false);
+        }
+    }
+
+    private MqttAsyncClient instantiate() throws Exception {
         String url = callback.getUrl();
         String id = callback.getClientId();
-        MqttClient client = new MqttClient(url, id, new MemoryPersistence());
+        if (LocalClient.isLocal(url)) {
+            LocalBridge bridge = callback.getLocalBridge();
+            if (bridge == null) {
+                throw new IllegalStateException("Embedded broker is not running");
+            }
+            LocalClient client = new LocalClient(bridge, url, id);
+            client.setCallback(callback);
+            client.attach();
+            return client;
+        }
+
+        MqttAsyncClient client = new MqttAsyncClient(url, id, callback.createPersistence());
 
         MqttConnectOptions opts = new MqttConnectOptions();
         opts.setCleanSession(callback.getCleanSession());
-        opts.setMaxInflight(1000);
+        opts.setMaxInflight(Mqtt.MAX_INFLIGHT);
         URLInfo info = URLInfo.parse(url);
         if ("ssl".equals(info.protocol)) {
-            String ro = null;
-            String cl = null;
-            String pk = null;
-            {
-                String a = callback.getCa();
-                String b = callback.getCert();
-                String c = callback.getPrivateKey();
-                if (a != null && b != null && c != null) {
-                    ro = a;
-                    cl = b;
-                    pk = c;
-                }
-            }
-            SSLSocketFactory f = new SslSocketFactoryImpl(ro, cl, pk);
-            opts.setSocketFactory(f);
+            opts.setSocketFactory(callback.getSocketFactory());
         }
 
         String username = callback.getUsername();
@@ -65,25 +313,41 @@ public class ClientReceiver extends GuaranteedReceiver<MqttClient> {
         }
 
         client.setCallback(callback);
-        client.connect(opts);
-        callback.setStatus(true);
-        LOGGER.info("Opened connection to MQTT at {}", url);
+        try {
+            client.connect(opts).waitForCompletion();
+        } catch (MqttException e) {
+            try {
+                client.close();
+            } catch (MqttException ignored) {
+            }
+            throw e;
+        }
         return client;
     }
 
-    @Override
-    protected boolean invalidateInstance(Exception e) {
-        Throwable cause = e.getCause();
+    private static boolean isConnectionError(Exception e) {
+        Throwable cause = e instanceof MqttException ? e : e.getCause();
         if (cause instanceof MqttException) {
             MqttException ex = (MqttException) cause;
             int code = ex.getReasonCode();
-            if (code == MqttException.REASON_CODE_CLIENT_NOT_CONNECTED
-                    || code == MqttException.REASON_CODE_CONNECTION_LOST) {
-                callback.setStatus(false);
-                LOGGER.error("Connection died ({})", code);
-                return true;
-            }
+            return code == MqttException.REASON_CODE_CLIENT_NOT_CONNECTED
+                    || code == MqttException.REASON_CODE_CONNECTION_LOST;
         }
         return false;
     }
+
+    private static void close(MqttAsyncClient client) {
+        if (client == null) {
+            return;
+        }
+        try {
+            client.setCallback(null);
+            client.disconnectForcibly(0, 1000);
+        } catch (Exception ignored) {
+        }
+        try {
+            client.close();
+        } catch (Exception ignored) {
+        }
+    }
 }
@@ -0,0 +1,222 @@
+package org.dsa.iot.mqtt.utils;
+
+import org.dsa.iot.mqtt.Mqtt;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Moves inbound messages off of the Paho callback thread. Messages are
+ * partitioned by the hash of their topic so a topic is always handled
+ * by the same worker, which keeps per-topic ordering intact. When the
+ * queue of a worker is full the message is dropped and counted.
+ */
+public class IngestPipeline {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(IngestPipeline.class);
+
+    private final Mqtt mqtt;
+    private final Worker[] workers;
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong inlineProcessed = new AtomicLong();
+
+    /**
+     * Pipeline messages are handed to once this one is stopped.
+     */
+    private volatile IngestPipeline successor;
+
+    /**
+     * @param mqtt Instance the messages are handed to.
+     * @param threads Amount of workers, 0 handles messages on the
+     *                calling thread.
+     * @param capacity Maximum amount of queued messages per worker.
+     */
+    public IngestPipeline(Mqtt mqtt, int threads, int capacity) {
+        this.mqtt = mqtt;
+        this.workers = new Worker[Math.max(threads, 0)];
+        capacity = Math.max(capacity, 1);
+        for (int i = 0; i < workers.length; i++) {
+            Worker w = new Worker(mqtt.getName() + "-" + i, capacity);
+            w.start();
+            workers[i] = w;
+        }
+    }
+
+    public void submit(String topic, MqttMessage msg) {
+        if (successor != null) {
+            forward(topic, msg);
+            return;
+        } else if (workers.length == 0) {
+            process(topic, msg);
+            inlineProcessed.incrementAndGet();
+            return;
+        }
+
+        Worker w = workers[partition(topic, workers.length)];
+        if (!w.queue.offer(new Entry(topic, msg))) {
+            dropped.incrementAndGet();
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("Ingest queue full, dropped message for '{}'", topic);
+            }
+        } else if (successor != null) {
+            // Stopped while the message was queued
+            forward(null, null);
+        }
+    }
+
+    /**
+     * Stops the workers, queued messages are discarded and counted as
+     * dropped.
+     */
+    public void stop() {
+        halt();
+        for (Worker w : workers) {
+            dropped.addAndGet(w.queue.size());
+            w.queue.clear();
+        }
+    }
+
+    /**
+     * Stops the workers and, once they exited, hands the messages they
+     * did not handle yet to another pipeline, oldest first. Messages
+     * submitted to this pipeline afterwards are forwarded as well.
+     *
+     * @param next Pipeline taking over.
+     */
+    public void stop(IngestPipeline next) {
+        halt();
+        awaitWorkers();
+        successor = next;
+        forward(null, null);
+    }
+
+    private void halt() {
+        for (Worker w : workers) {
+            w.running = false;
+            w.interrupt();
+        }
+    }
+
+    /**
+     * Waits for every worker to exit so no message of this pipeline is
+     * still being handled once the successor takes over its topics.
+     */
+    private void awaitWorkers() {
+        boolean interrupted = false;
+        for (Worker w : workers) {
+            while (w.isAlive() && w != Thread.currentThread()) {
+                try {
+                    w.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Moves the queued messages to the successor, followed by a message
+     * submitted after the pipeline stopped.
+     */
+    private synchronized void forward(String topic, MqttMessage msg) {
+        IngestPipeline next = successor;
+        for (Worker w : workers) {
+            Entry e;
+            while ((e = w.queue.poll()) != null) {
+                next.submit(e.topic, e.msg);
+            }
+        }
+        if (topic != null) {
+            next.submit(topic, msg);
+        }
+    }
+
+    public int getWorkerCount() {
+        return workers.length;
+    }
+
+    public int getQueueDepth() {
+        int depth = 0;
+        for (Worker w : workers) {
+            depth += w.queue.size();
+        }
+        return depth;
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * @param worker Index of the worker.
+     * @return Amount of messages the worker has handled.
+     */
+    public long getProcessed(int worker) {
+        return workers[worker].processed.get();
+    }
+
+    public long getProcessed() {
+        long total = inlineProcessed.get();
+        for (Worker w : workers) {
+            total += w.processed.get();
+        }
+        return total;
+    }
+
+    private void process(String topic, MqttMessage msg) {
+        try {
+            mqtt.handleMessage(topic, msg);
+        } catch (RuntimeException e) {
+            LOGGER.warn("Failed to handle message for '" + topic + "'", e);
+        }
+    }
+
+    public static int partition(String topic, int partitions) {
+        return (topic.hashCode() & 0x7FFFFFFF) % partitions;
+    }
+
+    private static class Entry {
+
+        private final String topic;
+        private final MqttMessage msg;
+
+        Entry(String topic, MqttMessage msg) {
+            this.topic = topic;
+            this.msg = msg;
+        }
+    }
+
+    private class Worker extends Thread {
+
+        private final BlockingQueue<Entry> queue;
+        private final AtomicLong processed = new AtomicLong();
+        private volatile boolean running = true;
+
+        Worker(String name, int capacity) {
+            super("mqtt-ingest-" + name);
+            setDaemon(true);
+            this.queue = new ArrayBlockingQueue<>(capacity);
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                Entry e;
+                try {
+                    e = queue.take();
+                } catch (InterruptedException ignored) {
+                    break;
+                }
+                process(e.topic, e.msg);
+                processed.incrementAndGet();
+            }
+        }
+    }
+}
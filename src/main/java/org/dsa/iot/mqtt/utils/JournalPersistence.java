@@ -0,0 +1,472 @@
+package org.dsa.iot.mqtt.utils;
+
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
+import org.eclipse.paho.client.mqttv3.MqttPersistable;
+import org.eclipse.paho.client.mqttv3.MqttPersistenceException;
+import org.eclipse.paho.client.mqttv3.internal.MqttPersistentData;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Client persistence backed by an append-only journal of memory-mapped
+ * segments. Every put and remove is appended as a checksummed record and
+ * an in-memory index points at the latest record of every key. Writes
+ * land in the page cache and are only forced to disk when a segment is
+ * sealed, on close, or once the sync interval has elapsed, so surviving a
+ * process restart never costs an fsync per message.
+ * <p>
+ * When a segment fills up and less than half of the journal is still
+ * live, the live records are copied into fresh segments and the old ones
+ * are deleted.
+ */
+public class JournalPersistence implements MqttClientPersistence {
+
+    public static final int DEFAULT_SEGMENT_SIZE = 8 * 1024 * 1024;
+    public static final long DEFAULT_SYNC_INTERVAL = 1000;
+
+    private static final String SUFFIX = ".journal";
+    private static final byte OP_PUT = 1;
+    private static final byte OP_REMOVE = 2;
+
+    /**
+     * Record length and checksum preceding every record body.
+     */
+    private static final int RECORD_HEADER = 8;
+
+    private final File root;
+    private final int segmentSize;
+    private final long syncInterval;
+
+    private final LinkedList<Segment> segments = new LinkedList<>();
+    private final Map<String, Location> index = new HashMap<>();
+    private final CRC32 crc = new CRC32();
+    private File dir;
+    private long nextSegmentId;
+    private long liveBytes;
+    private long totalBytes;
+    private long lastSync;
+
+    public JournalPersistence(String directory) {
+        this(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_SYNC_INTERVAL);
+    }
+
+    /**
+     * @param directory Directory holding the journals of every client.
+     * @param segmentSize Size of a segment in bytes.
+     * @param syncInterval Minimum time between forcing writes to disk
+     *                     in milliseconds. A value of 0 forces every write.
+     */
+    public JournalPersistence(String directory,
+                              int segmentSize,
+                              long syncInterval) {
+        this.root = new File(directory);
+        this.segmentSize = segmentSize;
+        this.syncInterval = syncInterval;
+    }
+
+    @Override
+    public synchronized void open(String clientId, String serverURI)
+                                        throws MqttPersistenceException {
+        String name = sanitize(clientId + "-" + serverURI);
+        dir = new File(root, name);
+        if (!(dir.isDirectory() || dir.mkdirs())) {
+            String err = "Failed to create " + dir.getAbsolutePath();
+            throw new MqttPersistenceException(new IOException(err));
+        }
+        try {
+            recover();
+        } catch (IOException e) {
+            throw new MqttPersistenceException(e);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws MqttPersistenceException {
+        checkOpen();
+        try {
+            for (Segment s : segments) {
+                s.close();
+            }
+        } catch (IOException e) {
+            throw new MqttPersistenceException(e);
+        } finally {
+            segments.clear();
+            index.clear();
+            dir = null;
+        }
+    }
+
+    @Override
+    public synchronized void put(String key, MqttPersistable persistable)
+                                        throws MqttPersistenceException {
+        checkOpen();
+        byte[] k = key.getBytes(PayloadDecoder.UTF_8);
+        int hLen = persistable.getHeaderLength();
+        int pLen = persistable.getPayloadLength();
+        int bodyLen = 1 + 2 + k.length + 4 + hLen + 4 + pLen;
+
+        ByteBuffer body = ByteBuffer.allocate(bodyLen);
+        body.put(OP_PUT);
+        body.putShort((short) k.length);
+        body.put(k);
+        body.putInt(hLen);
+        if (hLen > 0) {
+            body.put(persistable.getHeaderBytes(),
+                    persistable.getHeaderOffset(), hLen);
+        }
+        body.putInt(pLen);
+        if (pLen > 0) {
+            body.put(persistable.getPayloadBytes(),
+                    persistable.getPayloadOffset(), pLen);
+        }
+        try {
+            Location loc = append(body.array());
+            Location old = index.put(key, loc);
+            if (old != null) {
+                liveBytes -= old.length;
+            }
+            liveBytes += loc.length;
+        } catch (IOException e) {
+            throw new MqttPersistenceException(e);
+        }
+    }
+
+    @Override
+    public synchronized MqttPersistable get(String key)
+                                        throws MqttPersistenceException {
+        checkOpen();
+        Location loc = index.get(key);
+        if (loc == null) {
+            return null;
+        }
+        ByteBuffer buf = loc.segment.read(loc.offset + RECORD_HEADER,
+                                        loc.length - RECORD_HEADER);
+        buf.position(1 + 2 + buf.getShort(1));
+        byte[] header = new byte[buf.getInt()];
+        buf.get(header);
+        byte[] payload = new byte[buf.getInt()];
+        buf.get(payload);
+        return new MqttPersistentData(key,
+                                header, 0, header.length,
+                                payload, 0, payload.length);
+    }
+
+    @Override
+    public synchronized void remove(String key) throws MqttPersistenceException {
+        checkOpen();
+        Location old = index.remove(key);
+        if (old == null) {
+            return;
+        }
+        liveBytes -= old.length;
+
+        byte[] k = key.getBytes(PayloadDecoder.UTF_8);
+        ByteBuffer body = ByteBuffer.allocate(1 + 2 + k.length);
+        body.put(OP_REMOVE);
+        body.putShort((short) k.length);
+        body.put(k);
+        try {
+            append(body.array());
+        } catch (IOException e) {
+            throw new MqttPersistenceException(e);
+        }
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    public synchronized Enumeration keys() throws MqttPersistenceException {
+        checkOpen();
+        return Collections.enumeration(new ArrayList<>(index.keySet()));
+    }
+
+    @Override
+    public synchronized void clear() throws MqttPersistenceException {
+        checkOpen();
+        try {
+            for (Segment s : segments) {
+                s.delete();
+            }
+        } catch (IOException e) {
+            throw new MqttPersistenceException(e);
+        } finally {
+            segments.clear();
+            index.clear();
+            liveBytes = 0;
+            totalBytes = 0;
+        }
+    }
+
+    @Override
+    public synchronized boolean containsKey(String key)
+                                        throws MqttPersistenceException {
+        checkOpen();
+        return index.containsKey(key);
+    }
+
+    /**
+     * @return Amount of segments currently making up the journal.
+     */
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    private Location append(byte[] body) throws IOException {
+        int len = RECORD_HEADER + body.length;
+        Segment seg = segments.isEmpty() ? null : segments.getLast();
+        if (seg == null || seg.remaining() < len) {
+            if (seg != null) {
+                seg.force();
+                if (shouldCompact()) {
+                    compact();
+                }
+            }
+            seg = newSegment(Math.max(segmentSize, len));
+        }
+
+        crc.reset();
+        crc.update(body, 0, body.length);
+        int offset = seg.append(body, (int) crc.getValue());
+        totalBytes += len;
+
+        long now = System.currentTimeMillis();
+        if (now - lastSync >= syncInterval) {
+            seg.force();
+            lastSync = now;
+        }
+        return new Location(seg, offset, len);
+    }
+
+    private boolean shouldCompact() {
+        return segments.size() > 1 && liveBytes < totalBytes / 2;
+    }
+
+    /**
+     * Copies every live record into new segments. The new segments are
+     * forced before the old ones are deleted so a crash at any point
+     * replays into the same state.
+     */
+    private void compact() throws IOException {
+        List<Segment> old = new ArrayList<>(segments);
+        segments.clear();
+        totalBytes = 0;
+        liveBytes = 0;
+
+        Segment seg = null;
+        for (Map.Entry<String, Location> entry : index.entrySet()) {
+            Location loc = entry.getValue();
+            if (seg == null || seg.remaining() < loc.length) {
+                if (seg != null) {
+                    seg.force();
+                }
+                seg = newSegment(Math.max(segmentSize, loc.length));
+            }
+            ByteBuffer record = loc.segment.read(loc.offset, loc.length);
+            int offset = seg.copy(record);
+            entry.setValue(new Location(seg, offset, loc.length));
+            totalBytes += loc.length;
+            liveBytes += loc.length;
+        }
+        if (seg != null) {
+            seg.force();
+        }
+        for (Segment s : old) {
+            s.delete();
+        }
+    }
+
+    private void recover() throws IOException {
+        segments.clear();
+        index.clear();
+        liveBytes = 0;
+        totalBytes = 0;
+        nextSegmentId = 0;
+
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        List<Long> ids = new ArrayList<>();
+        for (File f : files) {
+            String name = f.getName();
+            if (!name.endsWith(SUFFIX)) {
+                continue;
+            }
+            try {
+                String id = name.substring(0, name.length() - SUFFIX.length());
+                ids.add(Long.parseLong(id));
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        Collections.sort(ids);
+        for (long id : ids) {
+            File f = new File(dir, segmentName(id));
+            Segment seg = new Segment(f, (int) f.length());
+            segments.add(seg);
+            replay(seg);
+            nextSegmentId = id + 1;
+        }
+    }
+
+    /**
+     * Replays the records of a segment into the index. Replay stops at
+     * the first empty or corrupt record, which also marks where the next
+     * record is appended.
+     */
+    private void replay(Segment seg) {
+        ByteBuffer buf = seg.buffer;
+        int pos = 0;
+        while (pos + RECORD_HEADER <= buf.capacity()) {
+            int bodyLen = buf.getInt(pos);
+            if (bodyLen <= 0 || pos + RECORD_HEADER + bodyLen > buf.capacity()) {
+                break;
+            }
+            byte[] body = new byte[bodyLen];
+            ByteBuffer dup = buf.duplicate();
+            dup.position(pos + RECORD_HEADER);
+            dup.get(body);
+            crc.reset();
+            crc.update(body, 0, bodyLen);
+            if ((int) crc.getValue() != buf.getInt(pos + 4)) {
+                break;
+            }
+
+            int len = RECORD_HEADER + bodyLen;
+            ByteBuffer b = ByteBuffer.wrap(body);
+            byte op = b.get();
+            byte[] k = new byte[b.getShort()];
+            b.get(k);
+            String key = new String(k, PayloadDecoder.UTF_8);
+            Location old;
+            if (op == OP_PUT) {
+                Location loc = new Location(seg, pos, len);
+                old = index.put(key, loc);
+                liveBytes += len;
+            } else {
+                old = index.remove(key);
+            }
+            if (old != null) {
+                liveBytes -= old.length;
+            }
+            totalBytes += len;
+            pos += len;
+        }
+        seg.position = pos;
+    }
+
+    private Segment newSegment(int size) throws IOException {
+        File f = new File(dir, segmentName(nextSegmentId++));
+        Segment seg = new Segment(f, size);
+        segments.add(seg);
+        return seg;
+    }
+
+    private void checkOpen() throws MqttPersistenceException {
+        if (dir == null) {
+            throw new MqttPersistenceException();
+        }
+    }
+
+    private static String segmentName(long id) {
+        return String.format("%016d%s", id, SUFFIX);
+    }
+
+    private static String sanitize(String name) {
+        StringBuilder b = new StringBuilder(name.length());
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (Character.isLetterOrDigit(c) || c == '-' || c == '_') {
+                b.append(c);
+            }
+        }
+        return b.toString();
+    }
+
+    private static class Location {
+
+        private final Segment segment;
+        private final int offset;
+        private final int length;
+
+        Location(Segment segment, int offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private static class Segment {
+
+        private final File file;
+        private final RandomAccessFile raf;
+        private final MappedByteBuffer buffer;
+        private int position;
+
+        Segment(File file, int size) throws IOException {
+            this.file = file;
+            this.raf = new RandomAccessFile(file, "rw");
+            FileChannel ch = raf.getChannel();
+            this.buffer = ch.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+
+        int remaining() {
+            return buffer.capacity() - position;
+        }
+
+        int append(byte[] body, int checksum) {
+            int offset = position;
+            // The length is written last so a torn record is never replayed
+            buffer.putInt(offset + 4, checksum);
+            ByteBuffer dup = buffer.duplicate();
+            dup.position(offset + RECORD_HEADER);
+            dup.put(body);
+            buffer.putInt(offset, body.length);
+            position += RECORD_HEADER + body.length;
+            return offset;
+        }
+
+        int copy(ByteBuffer record) {
+            int offset = position;
+            ByteBuffer dup = buffer.duplicate();
+            dup.position(offset);
+            dup.put(record);
+            position = dup.position();
+            return offset;
+        }
+
+        ByteBuffer read(int offset, int length) {
+            ByteBuffer dup = buffer.duplicate();
+            dup.position(offset);
+            dup.limit(offset + length);
+            return dup.slice();
+        }
+
+        void force() {
+            buffer.force();
+        }
+
+        void close() throws IOException {
+            force();
+            raf.close();
+        }
+
+        void delete() throws IOException {
+            raf.close();
+            if (!file.delete()) {
+                throw new IOException("Failed to delete " + file);
+            }
+        }
+    }
+}
@@ -0,0 +1,331 @@
+package org.dsa.iot.mqtt.utils;
+
+import org.dsa.iot.dslink.util.StringUtils;
+
+/**
+ * Streaming JSON parser that walks a payload in a single pass and reports
+ * every scalar it contains together with its path. Nested object keys and
+ * array indexes are joined with a slash and encoded to be valid node
+ * names. Scalars are reported as raw byte ranges so callers can skip
+ * decoding values that have not changed.
+ */
+public class JsonFlattener {
+
+    private static final int MAX_DEPTH = 32;
+
+    public enum Kind {
+        STRING,
+        NUMBER,
+        BOOL,
+        NULL
+    }
+
+    public interface Visitor {
+
+        /**
+         * @param path Path of the value, relative to the root of the JSON.
+         * @param buf Payload being parsed.
+         * @param start Start of the raw value, exclusive of quotes.
+         * @param end End of the raw value, exclusive of quotes.
+         * @param kind Kind of the value.
+         */
+        void onValue(String path, byte[] buf, int start, int end, Kind kind);
+    }
+
+    private final byte[] buf;
+    private final Visitor visitor;
+    private final StringBuilder path = new StringBuilder();
+    private int pos;
+
+    private JsonFlattener(byte[] buf, Visitor visitor) {
+        this.buf = buf;
+        this.visitor = visitor;
+    }
+
+    /**
+     * @param json Payload to parse, must hold an object or array.
+     * @param visitor Receives every scalar of the payload.
+     * @return Whether the payload was well formed. Values reported before
+     *         a syntax error was found are not rolled back.
+     */
+    public static boolean flatten(byte[] json, Visitor visitor) {
+        if (json == null) {
+            return false;
+        }
+        JsonFlattener f = new JsonFlattener(json, visitor);
+        f.skipWhitespace();
+        if (f.pos >= json.length || !(json[f.pos] == '{' || json[f.pos] == '[')) {
+            return false;
+        }
+        try {
+            f.parseValue(0);
+            f.skipWhitespace();
+            return f.pos == json.length;
+        } catch (IllegalStateException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Decodes the raw contents of a JSON string, resolving escapes.
+     */
+    public static String decodeString(byte[] buf, int start, int end) {
+        boolean escaped = false;
+        for (int i = start; i < end; i++) {
+            if (buf[i] == '\\') {
+                escaped = true;
+                break;
+            }
+        }
+        String raw = new String(buf, start, end - start, PayloadDecoder.UTF_8);
+        if (!escaped) {
+            return raw;
+        }
+
+        StringBuilder b = new StringBuilder(raw.length());
+        for (int i = 0; i < raw.length(); i++) {
+            char c = raw.charAt(i);
+            if (c != '\\' || i + 1 >= raw.length()) {
+                b.append(c);
+                continue;
+            }
+            c = raw.charAt(++i);
+            switch (c) {
+                case 'b': b.append('\b'); break;
+                case 'f': b.append('\f'); break;
+                case 'n': b.append('\n'); break;
+                case 'r': b.append('\r'); break;
+                case 't': b.append('\t'); break;
+                case 'u':
+                    int code = i + 4 < raw.length() ? hex(raw, i + 1) : -1;
+                    if (code < 0) {
+                        // Malformed escape, kept as is
+                        b.append('\\').append(c);
+                    } else {
+                        b.append((char) code);
+                        i += 4;
+                    }
+                    break;
+                default: b.append(c);
+            }
+        }
+        return b.toString();
+    }
+
+    /**
+     * @return Value of the four hex digits at an offset or {@code -1} if
+     *         they are not all hex digits.
+     */
+    private static int hex(CharSequence s, int offset) {
+        int code = 0;
+        for (int i = offset; i < offset + 4; i++) {
+            int digit = Character.digit(s.charAt(i), 16);
+            if (digit < 0) {
+                return -1;
+            }
+            code = code << 4 | digit;
+        }
+        return code;
+    }
+
+    private void parseValue(int depth) {
+        if (depth > MAX_DEPTH) {
+            throw new IllegalStateException("Maximum depth exceeded");
+        }
+        skipWhitespace();
+        byte c = peek();
+        if (c == '{') {
+            parseObject(depth);
+        } else if (c == '[') {
+            parseArray(depth);
+        } else if (c == '"') {
+            int start = pos + 1;
+            int end = skipString();
+            visitor.onValue(path.toString(), buf, start, end, Kind.STRING);
+        } else if (c == 't') {
+            literal("true", Kind.BOOL);
+        } else if (c == 'f') {
+            literal("false", Kind.BOOL);
+        } else if (c == 'n') {
+            literal("null", Kind.NULL);
+        } else {
+            number();
+        }
+    }
+
+    /**
+     * Moves past a number following the JSON grammar.
+     */
+    private void number() {
+        int start = pos;
+        if (buf[pos] == '-') {
+            pos++;
+        }
+        if (pos < buf.length && buf[pos] == '0') {
+            pos++;
+        } else if (skipDigits() == 0) {
+            throw new IllegalStateException("Unexpected character");
+        }
+        if (pos < buf.length && buf[pos] == '.') {
+            pos++;
+            if (skipDigits() == 0) {
+                throw new IllegalStateException("Invalid fraction");
+            }
+        }
+        if (pos < buf.length && (buf[pos] == 'e' || buf[pos] == 'E')) {
+            pos++;
+            if (pos < buf.length && (buf[pos] == '+' || buf[pos] == '-')) {
+                pos++;
+            }
+            if (skipDigits() == 0) {
+                throw new IllegalStateException("Invalid exponent");
+            }
+        }
+        visitor.onValue(path.toString(), buf, start, pos, Kind.NUMBER);
+    }
+
+    /**
+     * @return Amount of digits moved past.
+     */
+    private int skipDigits() {
+        int start = pos;
+        while (pos < buf.length && buf[pos] >= '0' && buf[pos] <= '9') {
+            pos++;
+        }
+        return pos - start;
+    }
+
+    private void parseObject(int depth) {
+        int base = path.length();
+        pos++;
+        skipWhitespace();
+        if (peek() == '}') {
+            pos++;
+            return;
+        }
+        while (true) {
+            skipWhitespace();
+            if (peek() != '"') {
+                throw new IllegalStateException("Expected key");
+            }
+            int start = pos + 1;
+            int end = skipString();
+            String key = decodeString(buf, start, end);
+
+            path.setLength(base);
+            if (base > 0) {
+                path.append('/');
+            }
+            path.append(StringUtils.encodeName(key));
+
+            skipWhitespace();
+            expect(':');
+            parseValue(depth + 1);
+            skipWhitespace();
+            if (peek() == ',') {
+                pos++;
+            } else {
+                expect('}');
+                break;
+            }
+        }
+        path.setLength(base);
+    }
+
+    private void parseArray(int depth) {
+        int base = path.length();
+        pos++;
+        skipWhitespace();
+        if (peek() == ']') {
+            pos++;
+            return;
+        }
+        for (int i = 0;; i++) {
+            path.setLength(base);
+            if (base > 0) {
+                path.append('/');
+            }
+            path.append(i);
+
+            parseValue(depth + 1);
+            skipWhitespace();
+            if (peek() == ',') {
+                pos++;
+            } else {
+                expect(']');
+                break;
+            }
+        }
+        path.setLength(base);
+    }
+
+    /**
+     * Moves past the string at the current position.
+     *
+     * @return End of the string contents.
+     */
+    private int skipString() {
+        pos++;
+        while (pos < buf.length) {
+            byte c = buf[pos];
+            if (c == '\\') {
+                if (pos + 1 < buf.length && buf[pos + 1] == 'u') {
+                    checkUnicode(pos + 2);
+                    pos += 4;
+                }
+                pos += 2;
+            } else if (c == '"') {
+                return pos++;
+            } else {
+                pos++;
+            }
+        }
+        throw new IllegalStateException("Unterminated string");
+    }
+
+    private void checkUnicode(int offset) {
+        if (offset + 4 > buf.length) {
+            throw new IllegalStateException("Unterminated escape");
+        }
+        for (int i = offset; i < offset + 4; i++) {
+            if (Character.digit(buf[i], 16) < 0) {
+                throw new IllegalStateException("Invalid escape");
+            }
+        }
+    }
+
+    private void literal(String literal, Kind kind) {
+        int start = pos;
+        for (int i = 0; i < literal.length(); i++, pos++) {
+            if (pos >= buf.length || buf[pos] != literal.charAt(i)) {
+                throw new IllegalStateException("Invalid literal");
+            }
+        }
+        visitor.onValue(path.toString(), buf, start, pos, kind);
+    }
+
+    private void expect(char c) {
+        if (peek() != c) {
+            throw new IllegalStateException("Expected " + c);
+        }
+        pos++;
+    }
+
+    private byte peek() {
+        if (pos >= buf.length) {
+            throw new IllegalStateException("Unexpected end");
+        }
+        return buf[pos];
+    }
+
+    private void skipWhitespace() {
+        while (pos < buf.length) {
+            byte c = buf[pos];
+            if (c == ' ' || c == '\t' || c == '\r' || c == '\n') {
+                pos++;
+            } else {
+                break;
+            }
+        }
+    }
+}
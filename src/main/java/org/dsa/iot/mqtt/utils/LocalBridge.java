@@ -0,0 +1,146 @@
+package org.dsa.iot.mqtt.utils;
+
+import io.moquette.interception.AbstractInterceptHandler;
+import io.moquette.interception.messages.InterceptPublishMessage;
+import io.moquette.server.Server;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.mqtt.MqttMessageBuilders;
+import io.netty.handler.codec.mqtt.MqttPublishMessage;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.dsa.iot.dslink.util.Objects;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+/**
+ * Connects local clients to the embedded broker without going through a
+ * socket. Publishes of network clients are picked up by the interceptor
+ * and handed to the local clients as they are, publishes of local clients
+ * are injected into the broker and handed to the other local clients
+ * directly. Payloads are never encoded into MQTT packets on the way.
+ * Retained messages are tracked in a {@link RetainedIndex} so they can be
+ * replayed to local subscriptions.
+ * <p>
+ * Local clients hand messages to the ingest pipeline of their server,
+ * which keeps topics ordered from there on. The interceptor pool of the
+ * broker does not, with more than one interceptor thread publishes of
+ * network clients can reach the pipeline out of order.
+ */
+public class LocalBridge extends AbstractInterceptHandler {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(LocalBridge.class);
+
+    /**
+     * Client ID publishes of local clients are injected with.
+     */
+    static final String CLIENT_ID = "dslink-local-bridge";
+
+    private final Set<LocalClient> clients = new CopyOnWriteArraySet<>();
+    private final Server server;
+    private final RetainedIndex retained;
+    private volatile boolean closed;
+
+    public LocalBridge(Server server, RetainedIndex retained) {
+        this.server = server;
+        this.retained = retained;
+    }
+
+    @Override
+    public String getID() {
+        return CLIENT_ID;
+    }
+
+    @Override
+    public void onPublish(InterceptPublishMessage msg) {
+        boolean retain = msg.isRetainFlag();
+        if (CLIENT_ID.equals(msg.getClientID())
+                || !(retain || !clients.isEmpty())) {
+            // Local publishes were already delivered
+            return;
+        }
+        // The buffer is released by the broker once the handler returns
+        ByteBuf buf = msg.getPayload();
+        byte[] payload = new byte[buf.readableBytes()];
+        buf.getBytes(buf.readerIndex(), payload);
+        if (retain) {
+            retained.put(msg.getTopicName(), payload);
+        }
+        MqttQoS qos = msg.getQos();
+        dispatch(msg.getTopicName(), payload, qos == null ? 0 : qos.value());
+    }
+
+    /**
+     * Closes the bridge, every attached client loses its connection.
+     */
+    public void close() {
+        closed = true;
+        for (final LocalClient client : clients) {
+            clients.remove(client);
+            Objects.getDaemonThreadPool().execute(new Runnable() {
+                @Override
+                public void run() {
+                    client.lost();
+                }
+            });
+        }
+    }
+
+    boolean attach(LocalClient client) {
+        if (closed) {
+            return false;
+        }
+        clients.add(client);
+        if (closed) {
+            clients.remove(client);
+            return false;
+        }
+        return true;
+    }
+
+    void detach(LocalClient client) {
+        clients.remove(client);
+    }
+
+    void publish(String topic, byte[] payload, int qos, boolean retained) {
+        MqttPublishMessage msg = MqttMessageBuilders.publish()
+                .topicName(topic)
+                .retained(retained)
+                .qos(MqttQoS.valueOf(qos))
+                .payload(Unpooled.wrappedBuffer(payload))
+                .build();
+        server.internalPublish(msg, CLIENT_ID);
+        if (retained) {
+            this.retained.put(topic, payload);
+        }
+        dispatch(topic, payload, qos);
+    }
+
+    /**
+     * Hands the retained messages matching a new subscription to the
+     * client.
+     */
+    void replayRetained(LocalClient client, String filter) {
+        List<String> topics = retained.match(filter);
+        for (String topic : topics) {
+            byte[] payload = retained.get(topic);
+            if (payload != null) {
+                client.deliverRetained(topic, payload);
+            }
+        }
+    }
+
+    private void dispatch(String topic, byte[] payload, int qos) {
+        for (LocalClient client : clients) {
+            try {
+                client.deliver(topic, payload, qos);
+            } catch (RuntimeException e) {
+                LOGGER.warn("Failed to deliver '{}' to {}",
+                        topic, client.getClientId(), e);
+            }
+        }
+    }
+}
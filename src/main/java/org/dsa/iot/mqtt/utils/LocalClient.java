@@ -0,0 +1,182 @@
+package org.dsa.iot.mqtt.utils;
+
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+
+/**
+ * Client attached to the embedded broker through a {@link LocalBridge}.
+ * It stands in for a network client so the rest of the link can use
+ * either one. Operations complete synchronously and do not hand out
+ * tokens, only the action listeners are notified.
+ */
+public class LocalClient extends MqttAsyncClient {
+
+    public static final String SCHEME = "local";
+
+    private final TopicTrie<String> filters = new TopicTrie<>();
+    private final LocalBridge bridge;
+
+    private volatile MqttCallback callback;
+    private volatile boolean connected;
+
+    public LocalClient(LocalBridge bridge,
+                       String url,
+                       String clientId) throws MqttException {
+        super(url, clientId, new MemoryPersistence());
+        this.bridge = bridge;
+    }
+
+    /**
+     * @param url URL of the server.
+     * @return Whether the URL refers to the embedded broker.
+     */
+    public static boolean isLocal(String url) {
+        return url != null && url.startsWith(SCHEME + ":");
+    }
+
+    /**
+     * Attaches the client to the broker.
+     *
+     * @throws MqttException The broker was stopped.
+     */
+    public void attach() throws MqttException {
+        if (!bridge.attach(this)) {
+            throw new MqttException(MqttException.REASON_CODE_SERVER_CONNECT_ERROR);
+        }
+        connected = true;
+    }
+
+    @Override
+    public IMqttDeliveryToken publish(String topic,
+                                      MqttMessage message,
+                                      Object userContext,
+                                      IMqttActionListener callback)
+                                                    throws MqttException {
+        checkConnected();
+        bridge.publish(topic, message.getPayload(),
+                message.getQos(), message.isRetained());
+        if (callback != null) {
+            callback.onSuccess(null);
+        }
+        return null;
+    }
+
+    @Override
+    public IMqttToken subscribe(String[] topicFilters,
+                                int[] qos,
+                                Object userContext,
+                                IMqttActionListener callback)
+                                                    throws MqttException {
+        checkConnected();
+        for (String filter : topicFilters) {
+            if (!filters.contains(filter)) {
+                filters.add(filter, filter);
+                bridge.replayRetained(this, filter);
+            }
+        }
+        if (callback != null) {
+            callback.onSuccess(null);
+        }
+        return null;
+    }
+
+    @Override
+    public IMqttToken unsubscribe(String[] topicFilters,
+                                  Object userContext,
+                                  IMqttActionListener callback)
+                                                    throws MqttException {
+        checkConnected();
+        for (String filter : topicFilters) {
+            filters.remove(filter, filter);
+        }
+        if (callback != null) {
+            callback.onSuccess(null);
+        }
+        return null;
+    }
+
+    @Override
+    public void setCallback(MqttCallback callback) {
+        this.callback = callback;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return connected;
+    }
+
+    @Override
+    public void disconnectForcibly(long quiesceTimeout,
+                                   long disconnectTimeout) {
+        detach();
+    }
+
+    @Override
+    public void close() throws MqttException {
+        detach();
+        super.close();
+    }
+
+    /**
+     * Hands a message published to the broker to the client if any of
+     * its filters match the topic.
+     */
+    void deliver(String topic, byte[] payload, int qos) {
+        if (filters.match(topic).isEmpty()) {
+            return;
+        }
+        MqttMessage msg = new MqttMessage(payload);
+        msg.setQos(qos);
+        messageArrived(topic, msg);
+    }
+
+    void deliverRetained(String topic, byte[] payload) {
+        MqttMessage msg = new MqttMessage(payload);
+        msg.setRetained(true);
+        messageArrived(topic, msg);
+    }
+
+    private void messageArrived(String topic, MqttMessage msg) {
+        MqttCallback callback = this.callback;
+        if (!connected || callback == null) {
+            return;
+        }
+        try {
+            callback.messageArrived(topic, msg);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Called by the bridge when the broker stops.
+     */
+    void lost() {
+        MqttCallback callback = this.callback;
+        if (!connected) {
+            return;
+        }
+        connected = false;
+        if (callback != null) {
+            int code = MqttException.REASON_CODE_CONNECTION_LOST;
+            callback.connectionLost(new MqttException(code));
+        }
+    }
+
+    private void detach() {
+        connected = false;
+        bridge.detach(this);
+    }
+
+    private void checkConnected() throws MqttException {
+        if (!connected) {
+            throw new MqttException(MqttException.REASON_CODE_CLIENT_NOT_CONNECTED);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package org.dsa.iot.mqtt.utils;
+
+import org.dsa.iot.dslink.node.Node;
+import org.dsa.iot.dslink.node.NodeBuilder;
+import org.dsa.iot.dslink.node.Writable;
+import org.dsa.iot.dslink.node.value.Value;
+import org.dsa.iot.dslink.node.value.ValuePair;
+import org.dsa.iot.dslink.node.value.ValueType;
+import org.dsa.iot.dslink.util.handler.Handler;
+
+/**
+ * Helpers for the folder, config and metric nodes the link exposes
+ * under its servers and the broker.
+ */
+public class NodeUtils {
+
+    /**
+     * Gets or creates a serializable folder node.
+     */
+    public static Node getOrCreateFolder(Node parent,
+                                         String name,
+                                         String displayName) {
+        Node n = parent.getChild(name);
+        if (n == null) {
+            NodeBuilder b = parent.createChild(name);
+            b.setDisplayName(displayName);
+            n = b.build();
+        }
+        return n;
+    }
+
+    /**
+     * Gets or creates a persisted, config writable value node. The
+     * default is only applied when the node is created so restored
+     * values are kept.
+     */
+    public static Node getOrCreateConfig(Node parent,
+                                         String name,
+                                         String displayName,
+                                         ValueType type,
+                                         Value def,
+                                         Handler<ValuePair> onChange) {
+        Node n = parent.getChild(name);
+        if (n == null) {
+            NodeBuilder b = parent.createChild(name);
+            b.setDisplayName(displayName);
+            b.setValueType(type);
+            b.setWritable(Writable.CONFIG);
+            b.setValue(def);
+            n = b.build();
+        } else if (n.getValue() == null) {
+            n.setValueType(type);
+            n.setValue(def);
+        }
+        if (onChange != null) {
+            n.getListener().setValueHandler(onChange);
+        }
+        return n;
+    }
+
+    /**
+     * Creates a read only, non-serializable node used to report
+     * runtime statistics.
+     */
+    public static Node createMetric(Node parent,
+                                    String name,
+                                    String displayName,
+                                    ValueType type,
+                                    Value initial) {
+        NodeBuilder b = parent.createChild(name);
+        b.setDisplayName(displayName);
+        b.setSerializable(false);
+        b.setValueType(type);
+        b.setValue(initial);
+        return b.build();
+    }
+
+    public static int getInt(Node node, int def) {
+        if (node == null) {
+            return def;
+        }
+        Value v = node.getValue();
+        if (v == null || v.getNumber() == null) {
+            return def;
+        }
+        return v.getNumber().intValue();
+    }
+}
@@ -0,0 +1,313 @@
+package org.dsa.iot.mqtt.utils;
+
+import org.bouncycastle.util.encoders.Base64;
+import org.bouncycastle.util.encoders.DecoderException;
+import org.dsa.iot.dslink.node.value.Value;
+import org.dsa.iot.dslink.node.value.ValueType;
+import org.dsa.iot.dslink.util.json.JsonArray;
+import org.dsa.iot.dslink.util.json.JsonObject;
+
+import java.nio.charset.Charset;
+
+/**
+ * Decodes MQTT payloads into typed values. Numbers and booleans are
+ * parsed straight from the payload bytes.
+ */
+public class PayloadDecoder {
+
+    public static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    /**
+     * Largest mantissa and power of ten that can be combined into a
+     * correctly rounded double.
+     */
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    public enum Mode {
+        STRING,
+        AUTO,
+        NUMBER,
+        BOOL,
+        JSON,
+        BASE64;
+
+        public static Mode fromString(String s) {
+            if (s == null) {
+                return STRING;
+            }
+            try {
+                return valueOf(s.toUpperCase());
+            } catch (IllegalArgumentException e) {
+                return STRING;
+            }
+        }
+
+        public static String[] names() {
+            Mode[] modes = values();
+            String[] names = new String[modes.length];
+            for (int i = 0; i < modes.length; i++) {
+                names[i] = modes[i].name().toLowerCase();
+            }
+            return names;
+        }
+    }
+
+    /**
+     * @param payload Payload to classify.
+     * @return The most specific mode the payload can be decoded with.
+     */
+    public static Mode classify(byte[] payload) {
+        if (parseNumber(payload) != null) {
+            return Mode.NUMBER;
+        } else if (parseBool(payload) != null) {
+            return Mode.BOOL;
+        }
+        int first = firstNonWhitespace(payload);
+        if (first >= 0 && (payload[first] == '{' || payload[first] == '[')) {
+            if (parseJson(payload) != null) {
+                return Mode.JSON;
+            }
+        }
+        return Mode.STRING;
+    }
+
+    /**
+     * @param mode Concrete mode, {@link Mode#AUTO} must be classified first.
+     * @param payload Payload to decode.
+     * @return Decoded value or {@code null} if the payload does not fit
+     *         the mode.
+     */
+    public static Value decode(Mode mode, byte[] payload) {
+        switch (mode) {
+            case NUMBER: {
+                Number n = parseNumber(payload);
+                return n == null ? null : new Value(n);
+            }
+            case BOOL: {
+                Boolean b = parseBool(payload);
+                return b == null ? null : new Value(b);
+            }
+            case JSON:
+                return parseJson(payload);
+            case BASE64:
+                return new Value(Base64.toBase64String(payload));
+            default:
+                return new Value(new String(payload, UTF_8));
+        }
+    }
+
+    /**
+     * Converts a value written by DSA back into a payload.
+     *
+     * @return Payload or {@code null} if the value is not valid in the
+     *         mode.
+     */
+    public static byte[] encode(Mode mode, Value value) {
+        String s = value == null ? "" : value.toString();
+        if (mode == Mode.BASE64) {
+            try {
+                return Base64.decode(s);
+            } catch (DecoderException e) {
+                return null;
+            }
+        }
+        return s.getBytes(UTF_8);
+    }
+
+    public static ValueType typeOf(Mode mode) {
+        switch (mode) {
+            case NUMBER:
+                return ValueType.NUMBER;
+            case BOOL:
+                return ValueType.BOOL;
+            case JSON:
+                return ValueType.DYNAMIC;
+            default:
+                return ValueType.STRING;
+        }
+    }
+
+    /**
+     * Parses a decimal number. Plain integers and decimals are parsed
+     * without creating a string, long integers are left to
+     * {@link Long#parseLong(String)} and anything else to
+     * {@link Double#parseDouble(String)}.
+     *
+     * @return Parsed number or {@code null} if the payload is not a number.
+     */
+    public static Number parseNumber(byte[] b) {
+        return b == null ? null : parseNumber(b, 0, b.length);
+    }
+
+    /**
+     * Parses a decimal number from a range of a buffer.
+     *
+     * @see #parseNumber(byte[])
+     */
+    public static Number parseNumber(byte[] b, int start, int end) {
+        while (start < end && isWhitespace(b[start])) {
+            start++;
+        }
+        while (end > start && isWhitespace(b[end - 1])) {
+            end--;
+        }
+        if (start >= end) {
+            return null;
+        }
+
+        int i = start;
+        boolean negative = false;
+        if (b[i] == '-' || b[i] == '+') {
+            negative = b[i] == '-';
+            if (++i >= end) {
+                return null;
+            }
+        }
+
+        long mantissa = 0;
+        int digits = 0;
+        int scale = 0;
+        boolean fraction = false;
+        for (; i < end; i++) {
+            byte c = b[i];
+            if (c >= '0' && c <= '9') {
+                if (mantissa >= MAX_EXACT_MANTISSA / 10) {
+                    return parseSlow(b, start, end);
+                }
+                mantissa = mantissa * 10 + (c - '0');
+                digits++;
+                if (fraction) {
+                    scale++;
+                }
+            } else if (c == '.' && !fraction) {
+                fraction = true;
+            } else if (c == 'e' || c == 'E') {
+                return digits > 0 ? parseSlow(b, start, end) : null;
+            } else {
+                return null;
+            }
+        }
+        if (digits == 0) {
+            return null;
+        }
+        if (negative) {
+            mantissa = -mantissa;
+        }
+        if (!fraction) {
+            if (mantissa >= Integer.MIN_VALUE && mantissa <= Integer.MAX_VALUE) {
+                return (int) mantissa;
+            }
+            return mantissa;
+        }
+        if (scale >= POWERS_OF_TEN.length) {
+            return parseSlow(b, start, end);
+        }
+        return mantissa / POWERS_OF_TEN[scale];
+    }
+
+    /**
+     * @return Parsed boolean or {@code null} if the payload is not one of
+     *         {@code true}, {@code false}, {@code 1} or {@code 0}.
+     */
+    public static Boolean parseBool(byte[] b) {
+        int start = firstNonWhitespace(b);
+        if (start < 0) {
+            return null;
+        }
+        int end = b.length;
+        while (end > start && isWhitespace(b[end - 1])) {
+            end--;
+        }
+        int len = end - start;
+        if (len == 1) {
+            if (b[start] == '1') {
+                return true;
+            } else if (b[start] == '0') {
+                return false;
+            }
+        } else if (len == 4 && regionMatches(b, start, "true")) {
+            return true;
+        } else if (len == 5 && regionMatches(b, start, "false")) {
+            return false;
+        }
+        return null;
+    }
+
+    private static Value parseJson(byte[] payload) {
+        int first = firstNonWhitespace(payload);
+        if (first < 0) {
+            return null;
+        }
+        String s = new String(payload, UTF_8);
+        try {
+            if (payload[first] == '{') {
+                return new Value(new JsonObject(s));
+            } else if (payload[first] == '[') {
+                return new Value(new JsonArray(s));
+            }
+        } catch (RuntimeException ignored) {
+        }
+        return null;
+    }
+
+    /**
+     * Parses numbers too long for the fast path or with an exponent.
+     * Integers stay exact as long as they fit a {@code long}.
+     */
+    private static Number parseSlow(byte[] b, int start, int end) {
+        boolean integer = true;
+        for (int i = start; i < end; i++) {
+            byte c = b[i];
+            if (c == '.' || c == 'e' || c == 'E') {
+                integer = false;
+            } else if (!(c >= '0' && c <= '9') && c != '-' && c != '+') {
+                // Suffixes and other forms only Java accepts
+                return null;
+            }
+        }
+        String s = new String(b, start, end - start, ASCII);
+        try {
+            if (integer) {
+                try {
+                    return Long.parseLong(s);
+                } catch (NumberFormatException ignored) {
+                    // Out of range of a long
+                }
+            }
+            return Double.parseDouble(s);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static boolean regionMatches(byte[] b, int offset, String lower) {
+        for (int i = 0; i < lower.length(); i++) {
+            int c = b[offset + i] | 0x20;
+            if (c != lower.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int firstNonWhitespace(byte[] b) {
+        if (b == null) {
+            return -1;
+        }
+        for (int i = 0; i < b.length; i++) {
+            if (!isWhitespace(b[i])) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t' || b == '\r' || b == '\n';
+    }
+}
@@ -0,0 +1,172 @@
+package org.dsa.iot.mqtt.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Retained messages of the embedded broker indexed by topic. Topics are
+ * kept in a {@link TopicTrie} as well so the messages matching a filter
+ * are found without scanning every retained topic. The index can be
+ * saved to and restored from a snapshot file.
+ */
+public class RetainedIndex {
+
+    private static final int MAGIC = 0x52544958;
+
+    private final Map<String, byte[]> messages = new ConcurrentHashMap<>();
+    private final TopicTrie<String> topics = new TopicTrie<>();
+    private volatile boolean dirty;
+
+    /**
+     * Stores the retained message of a topic, an empty payload clears it.
+     */
+    public void put(String topic, byte[] payload) {
+        synchronized (this) {
+            if (payload == null || payload.length == 0) {
+                if (messages.remove(topic) != null) {
+                    topics.remove(topic, topic);
+                    dirty = true;
+                }
+                return;
+            }
+            if (messages.put(topic, payload) == null) {
+                topics.add(topic, topic);
+            }
+            dirty = true;
+        }
+    }
+
+    public byte[] get(String topic) {
+        return messages.get(topic);
+    }
+
+    public int size() {
+        return messages.size();
+    }
+
+    /**
+     * @param filter Topic filter.
+     * @return Topics with a retained message matching the filter.
+     */
+    public List<String> match(String filter) {
+        List<String> out = new ArrayList<>();
+        if (filter.indexOf('+') < 0 && filter.indexOf('#') < 0) {
+            if (messages.containsKey(filter)) {
+                out.add(filter);
+            }
+            return out;
+        }
+        boolean wildcard = filter.startsWith("+") || filter.startsWith("#");
+        for (String topic : topics.coveredBy(filter)) {
+            // Wildcards at the first level never match topics starting with $
+            if (!(wildcard && topic.startsWith("$"))) {
+                out.add(topic);
+            }
+        }
+        return out;
+    }
+
+    public synchronized void clear() {
+        for (String topic : messages.keySet()) {
+            topics.remove(topic, topic);
+        }
+        messages.clear();
+        dirty = false;
+    }
+
+    /**
+     * Writes a snapshot if anything changed since the last one. The
+     * snapshot is written next to the file and renamed over it so a
+     * crash never leaves a partial snapshot behind.
+     *
+     * @return Whether a snapshot was written.
+     */
+    public boolean save(File file) throws IOException {
+        if (!dirty) {
+            return false;
+        }
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (dir != null && !(dir.isDirectory() || dir.mkdirs())) {
+            throw new IOException("Failed to create " + dir);
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        synchronized (this) {
+            dirty = false;
+            FileOutputStream fos = new FileOutputStream(tmp);
+            try {
+                DataOutputStream out = new DataOutputStream(
+                                        new BufferedOutputStream(fos, 65536));
+                out.writeInt(MAGIC);
+                out.writeInt(messages.size());
+                for (Map.Entry<String, byte[]> e : messages.entrySet()) {
+                    out.writeUTF(e.getKey());
+                    byte[] payload = e.getValue();
+                    out.writeInt(payload.length);
+                    out.write(payload);
+                }
+                out.flush();
+                fos.getFD().sync();
+            } catch (IOException e) {
+                dirty = true;
+                throw e;
+            } finally {
+                fos.close();
+            }
+        }
+        if (!tmp.renameTo(file)) {
+            // Windows does not replace existing files on rename
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                dirty = true;
+                throw new IOException("Failed to replace " + file);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Replaces the index with the snapshot, a missing snapshot leaves the
+     * index empty.
+     *
+     * @return Amount of retained messages restored.
+     */
+    public synchronized int load(File file) throws IOException {
+        clear();
+        if (!file.isFile()) {
+            return 0;
+        }
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file), 65536));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a retained index: " + file);
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String topic = in.readUTF();
+                byte[] payload = new byte[in.readInt()];
+                in.readFully(payload);
+                messages.put(topic, payload);
+                topics.add(topic, topic);
+            }
+        } catch (EOFException e) {
+            throw new IOException("Truncated retained index: " + file, e);
+        } finally {
+            in.close();
+        }
+        dirty = false;
+        return messages.size();
+    }
+}
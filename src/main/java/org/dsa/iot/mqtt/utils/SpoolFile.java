@@ -0,0 +1,124 @@
+package org.dsa.iot.mqtt.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * First in, first out queue of records kept in a single file. Records are
+ * appended at the end and read from the front. The file is truncated
+ * whenever it runs empty and compacted once more than half of it has been
+ * read, so a spool that never drains completely does not grow without
+ * bound. The file does not survive a restart, it only holds what does not
+ * fit in memory.
+ */
+public class SpoolFile {
+
+    /**
+     * Read bytes below this are never compacted, to avoid moving small
+     * files around on every poll.
+     */
+    private static final long MIN_COMPACT = 64 * 1024;
+
+    private final File file;
+    private RandomAccessFile raf;
+    private long readPos;
+    private long writePos;
+    private int count;
+
+    public SpoolFile(File file) {
+        this.file = file;
+    }
+
+    public synchronized void append(byte[] record) throws IOException {
+        RandomAccessFile raf = open();
+        raf.seek(writePos);
+        raf.writeInt(record.length);
+        raf.write(record);
+        writePos = raf.getFilePointer();
+        count++;
+    }
+
+    /**
+     * @return Oldest record or {@code null} if the file is empty.
+     */
+    public synchronized byte[] poll() throws IOException {
+        if (count == 0) {
+            return null;
+        }
+        RandomAccessFile raf = open();
+        raf.seek(readPos);
+        byte[] record = new byte[raf.readInt()];
+        raf.readFully(record);
+        readPos = raf.getFilePointer();
+        if (--count == 0) {
+            raf.setLength(0);
+            readPos = 0;
+            writePos = 0;
+        } else if (readPos >= MIN_COMPACT && readPos > writePos / 2) {
+            compact(raf);
+        }
+        return record;
+    }
+
+    /**
+     * Moves the unread records to the front of the file. At most as many
+     * bytes are copied as have been read since the last compaction, so
+     * the cost is amortized over the polls.
+     */
+    private void compact(RandomAccessFile raf) throws IOException {
+        byte[] buf = new byte[8192];
+        long src = readPos;
+        long dst = 0;
+        while (src < writePos) {
+            int len = (int) Math.min(buf.length, writePos - src);
+            raf.seek(src);
+            raf.readFully(buf, 0, len);
+            raf.seek(dst);
+            raf.write(buf, 0, len);
+            src += len;
+            dst += len;
+        }
+        raf.setLength(dst);
+        readPos = 0;
+        writePos = dst;
+    }
+
+    /**
+     * @return Current length of the file in bytes.
+     */
+    synchronized long length() {
+        return writePos;
+    }
+
+    public synchronized int size() {
+        return count;
+    }
+
+    public synchronized void close() {
+        count = 0;
+        readPos = 0;
+        writePos = 0;
+        if (raf != null) {
+            try {
+                raf.close();
+            } catch (IOException ignored) {
+            }
+            raf = null;
+        }
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+
+    private RandomAccessFile open() throws IOException {
+        if (raf == null) {
+            File dir = file.getParentFile();
+            if (dir != null && !(dir.isDirectory() || dir.mkdirs())) {
+                throw new IOException("Failed to create " + dir);
+            }
+            raf = new RandomAccessFile(file, "rw");
+            raf.setLength(0);
+        }
+        return raf;
+    }
+}
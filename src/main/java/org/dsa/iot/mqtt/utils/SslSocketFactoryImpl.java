@@ -8,6 +8,7 @@ import org.bouncycastle.openssl.PEMException;
 import org.bouncycastle.openssl.PEMKeyPair;
 import org.bouncycastle.openssl.PEMParser;
 import org.bouncycastle.openssl.jcajce.JcaPEMKeyConverter;
+import org.bouncycastle.util.encoders.Hex;
 
 import javax.net.ssl.*;
 import java.io.ByteArrayInputStream;
@@ -18,20 +19,27 @@ import java.net.InetAddress;
 import java.net.Socket;
 import java.security.KeyPair;
 import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.security.Security;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
 
 /**
- * @author Samuel Grenier
- */
-/**
+ * Socket factory backed by a single {@link SSLContext}. Reusing an
+ * instance across reconnects lets the context resume cached sessions
+ * instead of performing full handshakes.
+ *
  * @author Samuel Grenier
  */
 public class SslSocketFactoryImpl extends SSLSocketFactory {
 
+    private static final int SESSION_CACHE_SIZE = 16;
+    private static final int SESSION_TIMEOUT = 24 * 60 * 60;
+
     private final SSLContext context;
+    private final SSLSocketFactory factory;
 
     public SslSocketFactoryImpl(String caCert,
                                 String sslCert,
@@ -106,50 +114,76 @@ public class SslSocketFactoryImpl extends SSLSocketFactory {
             }
 
             context.init(km, tm, null);
+
+            SSLSessionContext sessions = context.getClientSessionContext();
+            sessions.setSessionCacheSize(SESSION_CACHE_SIZE);
+            sessions.setSessionTimeout(SESSION_TIMEOUT);
+            factory = context.getSocketFactory();
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
     }
 
+    /**
+     * @return Hex encoded SHA-256 digest of the TLS material, used to tell
+     *         whether a cached factory still matches the configuration.
+     */
+    public static String fingerprint(String caCert,
+                                     String sslCert,
+                                     String sslPrivKey) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            for (String s : new String[] { caCert, sslCert, sslPrivKey }) {
+                if (s != null) {
+                    md.update(s.getBytes(CharsetUtil.UTF_8));
+                }
+                md.update((byte) 0);
+            }
+            return Hex.toHexString(md.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     @Override
     public String[] getDefaultCipherSuites() {
-        return context.getSocketFactory().getDefaultCipherSuites();
+        return factory.getDefaultCipherSuites();
     }
 
     @Override
     public String[] getSupportedCipherSuites() {
-        return context.getSocketFactory().getSupportedCipherSuites();
+        return factory.getSupportedCipherSuites();
     }
 
     @Override
     public Socket createSocket() throws IOException {
-        return context.getSocketFactory().createSocket();
+        return factory.createSocket();
     }
 
     @Override
     public Socket createSocket(Socket socket, String s, int i, boolean b) throws IOException {
-        return context.getSocketFactory().createSocket(socket, s, i, b);
+        return factory.createSocket(socket, s, i, b);
     }
 
     @Override
     public Socket createSocket(String s, int i) throws IOException {
-        return context.getSocketFactory().createSocket(s, i);
+        return factory.createSocket(s, i);
     }
 
     @Override
     public Socket createSocket(String s, int i, InetAddress a, int i2) throws IOException {
-        return context.getSocketFactory().createSocket(s, i, a, i2);
+        return factory.createSocket(s, i, a, i2);
     }
 
     @Override
     public Socket createSocket(InetAddress a, int i) throws IOException {
-        return context.getSocketFactory().createSocket(a, i);
+        return factory.createSocket(a, i);
     }
 
     @Override
     public Socket createSocket(InetAddress a, int i, InetAddress a2, int i1)
                                                             throws IOException {
-        return context.getSocketFactory().createSocket(a, i, a2, i1);
+        return factory.createSocket(a, i, a2, i1);
     }
 
     public static KeyPair pemToPair(PEMKeyPair pair) throws PEMException {
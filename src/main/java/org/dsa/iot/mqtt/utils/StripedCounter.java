@@ -0,0 +1,63 @@
+package org.dsa.iot.mqtt.utils;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counter spread over several cells so threads incrementing it at the
+ * same time rarely contend on the same cache line. Reading the sum is
+ * comparatively slow and is meant for periodic statistics.
+ */
+public class StripedCounter {
+
+    /**
+     * Longs between two cells, keeps every cell on its own cache line.
+     */
+    private static final int PADDING = 8;
+
+    private final AtomicLongArray cells;
+    private final int mask;
+
+    public StripedCounter() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param stripes Minimum amount of cells, rounded up to a power of two.
+     */
+    public StripedCounter(int stripes) {
+        int size = Integer.highestOneBit(Math.max(stripes, 1) - 1) << 1;
+        if (size <= 0) {
+            size = 1;
+        }
+        this.cells = new AtomicLongArray(size * PADDING);
+        this.mask = size - 1;
+    }
+
+    public void increment() {
+        add(1);
+    }
+
+    public void add(long delta) {
+        cells.getAndAdd(index(), delta);
+    }
+
+    public long sum() {
+        long sum = 0;
+        for (int i = 0; i < cells.length(); i += PADDING) {
+            sum += cells.get(i);
+        }
+        return sum;
+    }
+
+    public void reset() {
+        for (int i = 0; i < cells.length(); i += PADDING) {
+            cells.set(i, 0);
+        }
+    }
+
+    private int index() {
+        long id = Thread.currentThread().getId();
+        int h = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+        return ((h >>> 16) & mask) * PADDING;
+    }
+}
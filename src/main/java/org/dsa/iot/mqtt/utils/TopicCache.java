@@ -0,0 +1,104 @@
+package org.dsa.iot.mqtt.utils;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bounded, least recently used cache keyed by topic. The cache is split
+ * into segments using the same partitioning as the {@link IngestPipeline}
+ * so every ingest worker works against its own, uncontended segment.
+ */
+public class TopicCache<V> {
+
+    private final Segment<V>[] segments;
+
+    /**
+     * @param capacity Maximum amount of entries across all segments.
+     * @param segments Amount of segments, normally the worker count.
+     */
+    @SuppressWarnings("unchecked")
+    public TopicCache(int capacity, int segments) {
+        segments = Math.max(segments, 1);
+        int perSegment = Math.max(capacity / segments, 1);
+        this.segments = new Segment[segments];
+        for (int i = 0; i < segments; i++) {
+            this.segments[i] = new Segment<>(perSegment);
+        }
+    }
+
+    public V get(String topic) {
+        Segment<V> seg = segment(topic);
+        synchronized (seg) {
+            return seg.get(topic);
+        }
+    }
+
+    public void put(String topic, V value) {
+        Segment<V> seg = segment(topic);
+        synchronized (seg) {
+            seg.put(topic, value);
+        }
+    }
+
+    public V remove(String topic) {
+        Segment<V> seg = segment(topic);
+        synchronized (seg) {
+            return seg.remove(topic);
+        }
+    }
+
+    /**
+     * @return Snapshot of the cached values.
+     */
+    public List<V> values() {
+        List<V> out = new ArrayList<>();
+        for (Segment<V> seg : segments) {
+            synchronized (seg) {
+                out.addAll(seg.values());
+            }
+        }
+        return out;
+    }
+
+    public void clear() {
+        for (Segment<V> seg : segments) {
+            synchronized (seg) {
+                seg.clear();
+            }
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment<V> seg : segments) {
+            synchronized (seg) {
+                size += seg.size();
+            }
+        }
+        return size;
+    }
+
+    private Segment<V> segment(String topic) {
+        if (segments.length == 1) {
+            return segments[0];
+        }
+        return segments[IngestPipeline.partition(topic, segments.length)];
+    }
+
+    private static class Segment<V> extends LinkedHashMap<String, V> {
+
+        private final int capacity;
+
+        Segment(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+            return size() > capacity;
+        }
+    }
+}
@@ -0,0 +1,306 @@
+package org.dsa.iot.mqtt.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Latest payload of every topic kept in a trie of topic levels. A level
+ * only holds its name, its children and a value slot, payloads of up to
+ * {@link #INLINE} bytes are packed into a primitive so the common
+ * numbers and booleans never allocate an array. The store stands in for
+ * data nodes that nothing lists or subscribes to.
+ */
+public class TopicStore {
+
+    /**
+     * Largest payload packed into the primitive slot of a level.
+     */
+    static final int INLINE = 8;
+
+    private final Level root = new Level("");
+    private int size;
+
+    /**
+     * Stores the latest payload of a topic.
+     */
+    public synchronized void put(String topic, byte[] payload) {
+        Level level = root;
+        int start = 0;
+        while (true) {
+            int end = topic.indexOf('/', start);
+            String name = end < 0 ? topic.substring(start)
+                                  : topic.substring(start, end);
+            level = level.getOrCreate(name);
+            if (end < 0) {
+                break;
+            }
+            start = end + 1;
+        }
+        if (!level.hasValue()) {
+            size++;
+        }
+        level.set(payload);
+    }
+
+    /**
+     * @return Latest payload of the topic or {@code null} if none is
+     *         stored.
+     */
+    public synchronized byte[] get(String topic) {
+        Level level = find(topic);
+        return level == null ? null : level.get();
+    }
+
+    /**
+     * @return Whether a payload is stored for the topic.
+     */
+    public synchronized boolean contains(String topic) {
+        Level level = find(topic);
+        return level != null && level.hasValue();
+    }
+
+    /**
+     * Removes the payload of a topic along with any levels left empty.
+     *
+     * @return The removed payload or {@code null} if none was stored.
+     */
+    public synchronized byte[] remove(String topic) {
+        String[] parts = topic.split("/", -1);
+        Level[] path = new Level[parts.length + 1];
+        path[0] = root;
+        for (int i = 0; i < parts.length; i++) {
+            path[i + 1] = path[i].getChild(parts[i]);
+            if (path[i + 1] == null) {
+                return null;
+            }
+        }
+        Level level = path[parts.length];
+        byte[] payload = level.get();
+        if (payload == null) {
+            return null;
+        }
+        level.clear();
+        size--;
+        for (int i = parts.length; i > 0 && path[i].isEmpty(); i--) {
+            path[i - 1].removeChild(parts[i - 1]);
+        }
+        return payload;
+    }
+
+    /**
+     * Removes the payloads of every topic matching a filter.
+     *
+     * @return Amount of topics removed.
+     */
+    public synchronized int removeMatching(String filter) {
+        int removed = removeMatching(root, filter.split("/", -1), 0);
+        size -= removed;
+        return removed;
+    }
+
+    /**
+     * @param prefix Topic of the parent level, {@code null} for the top
+     *               level.
+     * @return Names of the levels directly below the prefix.
+     */
+    public synchronized List<String> children(String prefix) {
+        Level level = prefix == null ? root : find(prefix);
+        if (level == null || level.children == null) {
+            return Collections.emptyList();
+        }
+        return new ArrayList<>(level.children.keySet());
+    }
+
+    /**
+     * @return Amount of topics with a stored payload.
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized void clear() {
+        root.children = null;
+        size = 0;
+    }
+
+    private Level find(String topic) {
+        Level level = root;
+        int start = 0;
+        while (level != null) {
+            int end = topic.indexOf('/', start);
+            String name = end < 0 ? topic.substring(start)
+                                  : topic.substring(start, end);
+            level = level.getChild(name);
+            if (end < 0) {
+                return level;
+            }
+            start = end + 1;
+        }
+        return null;
+    }
+
+    private static int removeMatching(Level level, String[] parts, int i) {
+        if (i == parts.length) {
+            return level.clear() ? 1 : 0;
+        }
+        String part = parts[i];
+        if ("#".equals(part)) {
+            // The parent level of a multi-level wildcard matches as well
+            int removed = i > 0 && level.clear() ? 1 : 0;
+            return removed + clearChildren(level, i == 0);
+        } else if (level.children == null) {
+            return 0;
+        }
+
+        int removed = 0;
+        if ("+".equals(part)) {
+            Iterator<Level> it = level.children.values().iterator();
+            while (it.hasNext()) {
+                Level child = it.next();
+                // Wildcards at the first level never match topics starting with $
+                if (i == 0 && child.name.startsWith("$")) {
+                    continue;
+                }
+                removed += removeMatching(child, parts, i + 1);
+                if (child.isEmpty()) {
+                    it.remove();
+                }
+            }
+        } else {
+            Level child = level.children.get(part);
+            if (child != null) {
+                removed += removeMatching(child, parts, i + 1);
+                if (child.isEmpty()) {
+                    level.children.remove(part);
+                }
+            }
+        }
+        if (level.children.isEmpty()) {
+            level.children = null;
+        }
+        return removed;
+    }
+
+    private static int clearChildren(Level level, boolean top) {
+        if (level.children == null) {
+            return 0;
+        }
+        int removed = 0;
+        List<Level> pending = new ArrayList<>();
+        Iterator<Level> it = level.children.values().iterator();
+        while (it.hasNext()) {
+            Level child = it.next();
+            if (top && child.name.startsWith("$")) {
+                continue;
+            }
+            it.remove();
+            pending.add(child);
+        }
+        if (level.children.isEmpty()) {
+            level.children = null;
+        }
+        while (!pending.isEmpty()) {
+            Level l = pending.remove(pending.size() - 1);
+            if (l.hasValue()) {
+                removed++;
+            }
+            if (l.children != null) {
+                pending.addAll(l.children.values());
+            }
+        }
+        return removed;
+    }
+
+    private static class Level {
+
+        private static final byte NONE = -1;
+        private static final byte ARRAY = INLINE + 1;
+
+        private final String name;
+        private Map<String, Level> children;
+        private byte[] array;
+        private long packed;
+        private byte length = NONE;
+
+        Level(String name) {
+            this.name = name;
+        }
+
+        Level getChild(String name) {
+            return children == null ? null : children.get(name);
+        }
+
+        Level getOrCreate(String name) {
+            if (children == null) {
+                children = new HashMap<>(4);
+            }
+            Level child = children.get(name);
+            if (child == null) {
+                child = new Level(name);
+                children.put(name, child);
+            }
+            return child;
+        }
+
+        void removeChild(String name) {
+            if (children != null) {
+                children.remove(name);
+                if (children.isEmpty()) {
+                    children = null;
+                }
+            }
+        }
+
+        boolean hasValue() {
+            return length != NONE;
+        }
+
+        boolean isEmpty() {
+            return length == NONE && children == null;
+        }
+
+        void set(byte[] payload) {
+            if (payload.length > INLINE) {
+                array = payload;
+                packed = 0;
+                length = ARRAY;
+                return;
+            }
+            long bits = 0;
+            for (int i = 0; i < payload.length; i++) {
+                bits |= (payload[i] & 0xFFL) << (i * 8);
+            }
+            array = null;
+            packed = bits;
+            length = (byte) payload.length;
+        }
+
+        byte[] get() {
+            if (length == NONE) {
+                return null;
+            } else if (length == ARRAY) {
+                return array;
+            }
+            byte[] payload = new byte[length];
+            for (int i = 0; i < payload.length; i++) {
+                payload[i] = (byte) (packed >>> (i * 8));
+            }
+            return payload;
+        }
+
+        /**
+         * @return Whether the level held a value.
+         */
+        boolean clear() {
+            boolean had = length != NONE;
+            array = null;
+            packed = 0;
+            length = NONE;
+            return had;
+        }
+    }
+}
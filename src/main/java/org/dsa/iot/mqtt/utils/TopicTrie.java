@@ -0,0 +1,342 @@
+package org.dsa.iot.mqtt.utils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Trie of MQTT topic filters, one level per node. Every filter can hold
+ * multiple values. Matching a topic or checking whether a filter is
+ * covered only visits the levels of the topic, following at most the
+ * exact and single level wildcard branch at every level.
+ */
+public class TopicTrie<V> {
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Node<V> root = new Node<>();
+
+    public void add(String filter, V value) {
+        lock.writeLock().lock();
+        try {
+            Node<V> node = root;
+            for (String level : split(filter)) {
+                node = node.getOrCreate(level);
+            }
+            node.filter = filter;
+            node.values.add(value);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return Whether the value was held by the filter.
+     */
+    public boolean remove(String filter, V value) {
+        lock.writeLock().lock();
+        try {
+            return remove(root, split(filter), 0, value);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return Whether the exact filter holds any value.
+     */
+    public boolean contains(String filter) {
+        lock.readLock().lock();
+        try {
+            Node<V> node = root;
+            for (String level : split(filter)) {
+                node = node.get(level);
+                if (node == null) {
+                    return false;
+                }
+            }
+            return !node.values.isEmpty();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return Values held by the exact filter.
+     */
+    public List<V> get(String filter) {
+        lock.readLock().lock();
+        try {
+            Node<V> node = root;
+            for (String level : split(filter)) {
+                node = node.get(level);
+                if (node == null) {
+                    return new ArrayList<>(0);
+                }
+            }
+            return new ArrayList<>(node.values);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @param topic Topic name without wildcards.
+     * @return Values of every filter matching the topic.
+     */
+    public List<V> match(String topic) {
+        List<V> out = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            match(root, split(topic), 0, out);
+        } finally {
+            lock.readLock().unlock();
+        }
+        return out;
+    }
+
+    /**
+     * @param filter Filter to check.
+     * @return Whether a different filter matches every topic the filter
+     *         matches.
+     */
+    public boolean isCovered(String filter) {
+        lock.readLock().lock();
+        try {
+            return covers(root, split(filter), 0, filter);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @param filter Filter to check.
+     * @return Values of every different filter that matches every topic
+     *         the filter matches.
+     */
+    public List<V> covering(String filter) {
+        List<V> out = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            covering(root, split(filter), 0, filter, out);
+        } finally {
+            lock.readLock().unlock();
+        }
+        return out;
+    }
+
+    /**
+     * @param filter Filter to check.
+     * @return Every other filter that only matches topics the filter
+     *         matches as well.
+     */
+    public List<String> coveredBy(String filter) {
+        List<String> out = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            covered(root, split(filter), 0, filter, out);
+        } finally {
+            lock.readLock().unlock();
+        }
+        return out;
+    }
+
+    private boolean remove(Node<V> node, String[] levels, int i, V value) {
+        if (i == levels.length) {
+            return node.values.remove(value);
+        }
+        Node<V> child = node.get(levels[i]);
+        if (child == null || !remove(child, levels, i + 1, value)) {
+            return false;
+        }
+        if (child.isEmpty()) {
+            node.removeChild(levels[i]);
+        }
+        return true;
+    }
+
+    private static <V> void match(Node<V> node,
+                                  String[] levels,
+                                  int i,
+                                  List<V> out) {
+        // Wildcards at the first level never match topics starting with $
+        boolean wildcards = i > 0 || !levels[0].startsWith("$");
+        if (wildcards && node.hash != null) {
+            out.addAll(node.hash.values);
+        }
+        if (i == levels.length) {
+            out.addAll(node.values);
+            return;
+        }
+        Node<V> child = node.children == null ? null : node.children.get(levels[i]);
+        if (child != null) {
+            match(child, levels, i + 1, out);
+        }
+        if (wildcards && node.plus != null) {
+            match(node.plus, levels, i + 1, out);
+        }
+    }
+
+    private static <V> boolean covers(Node<V> node,
+                                      String[] levels,
+                                      int i,
+                                      String filter) {
+        boolean wildcards = i > 0 || !levels[0].startsWith("$");
+        if (wildcards && node.hash != null && !filter.equals(node.hash.filter)) {
+            return true;
+        }
+        if (i == levels.length) {
+            return !node.values.isEmpty() && !filter.equals(node.filter);
+        }
+        String level = levels[i];
+        if ("#".equals(level)) {
+            return false;
+        }
+        if (wildcards && node.plus != null
+                && covers(node.plus, levels, i + 1, filter)) {
+            return true;
+        }
+        if ("+".equals(level) || node.children == null) {
+            return false;
+        }
+        Node<V> child = node.children.get(level);
+        return child != null && covers(child, levels, i + 1, filter);
+    }
+
+    private static <V> void covering(Node<V> node,
+                                     String[] levels,
+                                     int i,
+                                     String filter,
+                                     List<V> out) {
+        boolean wildcards = i > 0 || !levels[0].startsWith("$");
+        if (wildcards && node.hash != null && !filter.equals(node.hash.filter)) {
+            out.addAll(node.hash.values);
+        }
+        if (i == levels.length) {
+            if (!filter.equals(node.filter)) {
+                out.addAll(node.values);
+            }
+            return;
+        }
+        String level = levels[i];
+        if ("#".equals(level)) {
+            return;
+        }
+        if (wildcards && node.plus != null) {
+            covering(node.plus, levels, i + 1, filter, out);
+        }
+        if ("+".equals(level) || node.children == null) {
+            return;
+        }
+        Node<V> child = node.children.get(level);
+        if (child != null) {
+            covering(child, levels, i + 1, filter, out);
+        }
+    }
+
+    private static <V> void covered(Node<V> node,
+                                    String[] levels,
+                                    int i,
+                                    String filter,
+                                    List<String> out) {
+        if (i == levels.length) {
+            if (!node.values.isEmpty() && !filter.equals(node.filter)) {
+                out.add(node.filter);
+            }
+            return;
+        }
+        String level = levels[i];
+        if ("#".equals(level)) {
+            collect(node, filter, out);
+        } else if ("+".equals(level)) {
+            if (node.children != null) {
+                for (Node<V> child : node.children.values()) {
+                    covered(child, levels, i + 1, filter, out);
+                }
+            }
+            if (node.plus != null) {
+                covered(node.plus, levels, i + 1, filter, out);
+            }
+        } else if (node.children != null) {
+            Node<V> child = node.children.get(level);
+            if (child != null) {
+                covered(child, levels, i + 1, filter, out);
+            }
+        }
+    }
+
+    private static <V> void collect(Node<V> node, String filter, List<String> out) {
+        if (!node.values.isEmpty() && !filter.equals(node.filter)) {
+            out.add(node.filter);
+        }
+        if (node.children != null) {
+            for (Node<V> child : node.children.values()) {
+                collect(child, filter, out);
+            }
+        }
+        if (node.plus != null) {
+            collect(node.plus, filter, out);
+        }
+        if (node.hash != null) {
+            collect(node.hash, filter, out);
+        }
+    }
+
+    private static String[] split(String topic) {
+        return topic.split("/", -1);
+    }
+
+    private static class Node<V> {
+
+        private final List<V> values = new ArrayList<>(1);
+        private Map<String, Node<V>> children;
+        private Node<V> plus;
+        private Node<V> hash;
+        private String filter;
+
+        Node<V> get(String level) {
+            if ("+".equals(level)) {
+                return plus;
+            } else if ("#".equals(level)) {
+                return hash;
+            }
+            return children == null ? null : children.get(level);
+        }
+
+        Node<V> getOrCreate(String level) {
+            Node<V> node = get(level);
+            if (node != null) {
+                return node;
+            }
+            node = new Node<>();
+            if ("+".equals(level)) {
+                plus = node;
+            } else if ("#".equals(level)) {
+                hash = node;
+            } else {
+                if (children == null) {
+                    children = new HashMap<>();
+                }
+                children.put(level, node);
+            }
+            return node;
+        }
+
+        void removeChild(String level) {
+            if ("+".equals(level)) {
+                plus = null;
+            } else if ("#".equals(level)) {
+                hash = null;
+            } else if (children != null) {
+                children.remove(level);
+            }
+        }
+
+        boolean isEmpty() {
+            return values.isEmpty() && plus == null && hash == null
+                    && (children == null || children.isEmpty());
+        }
+    }
+}
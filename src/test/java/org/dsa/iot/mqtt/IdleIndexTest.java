@@ -0,0 +1,104 @@
+package org.dsa.iot.mqtt;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.List;
+
+public class IdleIndexTest {
+
+    @Test
+    public void pollsIdleTopicsOldestFirst() {
+        IdleIndex index = new IdleIndex();
+        index.configure(10000, 0);
+        TopicEntry a = entry("a");
+        TopicEntry b = entry("b");
+        TopicEntry c = entry("c");
+        index.touch(a, 1000);
+        index.touch(b, 2000);
+        index.touch(c, 3000);
+
+        // Too soon to move the topic
+        index.touch(a, 1500);
+        Assert.assertEquals(1000, a.indexed);
+        index.touch(a, 4000);
+
+        List<TopicEntry> idle = index.poll(13500, 10);
+        Assert.assertEquals(2, idle.size());
+        Assert.assertSame(b, idle.get(0));
+        Assert.assertSame(c, idle.get(1));
+        Assert.assertEquals(1, index.size());
+        Assert.assertTrue(index.contains("a"));
+    }
+
+    @Test
+    public void enforcesBudget() {
+        IdleIndex index = new IdleIndex();
+        index.configure(0, 2);
+        for (int i = 0; i < 5; i++) {
+            index.touch(entry("t" + i), 1000 + i * 1000);
+        }
+        List<TopicEntry> over = index.poll(6000, 2);
+        Assert.assertEquals(2, over.size());
+        Assert.assertEquals("t0", over.get(0).topic);
+        over = index.poll(6000, 10);
+        Assert.assertEquals(1, over.size());
+        Assert.assertEquals("t2", over.get(0).topic);
+
+        index.keep(over.get(0), 7000);
+        Assert.assertEquals(3, index.size());
+        Assert.assertEquals("t3", index.poll(7000, 10).get(0).topic);
+
+        index.configure(0, 0);
+        Assert.assertFalse(index.isEnabled());
+        Assert.assertEquals(0, index.size());
+    }
+
+    @Test
+    public void keptTopicsCountTowardBudget() {
+        IdleIndex index = new IdleIndex();
+        index.configure(0, 2);
+        TopicEntry pinned = entry("pinned");
+        index.touch(pinned, 1000);
+        index.touch(entry("a"), 2000);
+        index.touch(entry("b"), 3000);
+
+        List<TopicEntry> over = index.poll(4000, 10);
+        Assert.assertEquals(1, over.size());
+        Assert.assertSame(pinned, over.get(0));
+        index.keep(pinned, 4000);
+
+        // Updates leave a kept topic aside
+        index.touch(pinned, 5000);
+        Assert.assertFalse(index.isIndexed(pinned));
+        Assert.assertEquals(3, index.size());
+
+        over = index.poll(6000, 10);
+        Assert.assertEquals(1, over.size());
+        Assert.assertEquals("a", over.get(0).topic);
+        Assert.assertTrue(index.poll(6000, 10).isEmpty());
+
+        Assert.assertTrue(index.pollKept(4000 + IdleIndex.KEEP_INTERVAL - 1, 10).isEmpty());
+        List<TopicEntry> due = index.pollKept(4000 + IdleIndex.KEEP_INTERVAL, 10);
+        Assert.assertEquals(1, due.size());
+        index.release(pinned);
+        Assert.assertTrue(index.isIndexed(pinned));
+        Assert.assertEquals(2, index.size());
+    }
+
+    @Test
+    public void updateAfterPollIndexesAgain() {
+        IdleIndex index = new IdleIndex();
+        index.configure(1000, 0);
+        TopicEntry a = entry("a");
+        index.touch(a, 1000);
+        Assert.assertSame(a, index.poll(3000, 10).get(0));
+        Assert.assertFalse(index.isIndexed(a));
+        index.touch(a, 3000);
+        Assert.assertTrue(index.isIndexed(a));
+    }
+
+    private static TopicEntry entry(String topic) {
+        return new TopicEntry(topic, null, null, new Object());
+    }
+}
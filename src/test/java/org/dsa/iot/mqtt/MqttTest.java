@@ -3,9 +3,16 @@ package org.dsa.iot.mqtt;
 import org.dsa.iot.dslink.node.Node;
 import org.dsa.iot.dslink.node.NodeManager;
 import org.dsa.iot.dslink.node.exceptions.NoSuchPathException;
+import org.dsa.iot.dslink.node.value.Value;
+import org.dsa.iot.dslink.util.handler.Handler;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
 /**
  * @author Samuel Grenier
  */
@@ -58,4 +65,47 @@ public class MqttTest {
         Assert.assertTrue(exception);
     }
 
+    @Test
+    public void ingestDuringTeardown() throws InterruptedException {
+        NodeManager manager = new NodeManager(null, "node");
+        Node server = manager.createRootNode("server").build();
+        server.setRoConfig("url", new Value("tcp://localhost:1883"));
+        server.setRoConfig("clientId", new Value("test"));
+        Mqtt mqtt = new Mqtt(server) {
+            @Override
+            protected void get(Handler<MqttAsyncClient> onClientReceived) {
+                // Never connects
+            }
+        };
+        mqtt.init();
+        try {
+            // Enough nodes for the teardown to take several slices
+            for (int i = 0; i < 20000; i++) {
+                mqtt.handleMessage("a/" + i, new MqttMessage("0".getBytes()));
+            }
+
+            final CountDownLatch done = new CountDownLatch(1);
+            mqtt.tearDown("#", new Runnable() {
+                @Override
+                public void run() {
+                    done.countDown();
+                }
+            });
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (done.getCount() > 0 && System.nanoTime() < deadline) {
+                mqtt.handleMessage("live", new MqttMessage("1".getBytes()));
+            }
+            Assert.assertTrue("Teardown did not finish in time",
+                              done.await(0, TimeUnit.SECONDS));
+
+            mqtt.handleMessage("live", new MqttMessage("2".getBytes()));
+            Node data = server.getChild("data");
+            Node live = data.getChild("live");
+            Assert.assertNotNull(live);
+            Assert.assertSame(data, live.getParent());
+            Assert.assertEquals("2", live.getValue().getString());
+        } finally {
+            mqtt.shutdown();
+        }
+    }
 }
@@ -0,0 +1,88 @@
+package org.dsa.iot.mqtt;
+
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SubscribeBatchesTest {
+
+    @Test
+    public void retriesFailedBatches() throws MqttException {
+        FlakyClient client = new FlakyClient();
+        String[] topics = new String[450];
+        int[] qos = new int[topics.length];
+        for (int i = 0; i < topics.length; i++) {
+            topics[i] = "topic" + i;
+        }
+        final AtomicInteger done = new AtomicInteger();
+        new SubscribeBatches(client, topics, qos, new Runnable() {
+            @Override
+            public void run() {
+                done.incrementAndGet();
+            }
+        }).start();
+
+        Assert.assertEquals(1, done.get());
+        Assert.assertEquals(new HashSet<>(Arrays.asList(topics)),
+                            client.subscribed);
+    }
+
+    @Test
+    public void doneWithoutTopics() throws MqttException {
+        final AtomicInteger done = new AtomicInteger();
+        new SubscribeBatches(new FlakyClient(), new String[0], new int[0], new Runnable() {
+            @Override
+            public void run() {
+                done.incrementAndGet();
+            }
+        }).start();
+        Assert.assertEquals(1, done.get());
+    }
+
+    /**
+     * Completes on the calling thread, fails every full batch once and
+     * every filter ending in 7 on its first attempt.
+     */
+    private static class FlakyClient extends MqttAsyncClient {
+
+        private final Set<String> subscribed = new HashSet<>();
+        private final Set<String> failed = new HashSet<>();
+
+        FlakyClient() throws MqttException {
+            super("tcp://localhost:1883", "test", new MemoryPersistence());
+        }
+
+        @Override
+        public IMqttToken subscribe(String[] topicFilters,
+                                    int[] qos,
+                                    Object userContext,
+                                    IMqttActionListener callback) {
+            String key = topicFilters.length > 1
+                    ? topicFilters[0] + "/" + topicFilters.length
+                    : topicFilters[0];
+            boolean fail = topicFilters.length == SubscribeBatches.BATCH_SIZE
+                    || topicFilters[0].endsWith("7");
+            if (fail && failed.add(key)) {
+                callback.onFailure(null, new MqttException(0));
+            } else {
+                subscribed.addAll(Arrays.asList(topicFilters));
+                callback.onSuccess(null);
+            }
+            return null;
+        }
+
+        @Override
+        public boolean isConnected() {
+            return true;
+        }
+    }
+}
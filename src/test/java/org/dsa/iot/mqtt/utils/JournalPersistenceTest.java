@@ -0,0 +1,105 @@
+package org.dsa.iot.mqtt.utils;
+
+import org.eclipse.paho.client.mqttv3.MqttPersistable;
+import org.eclipse.paho.client.mqttv3.internal.MqttPersistentData;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Enumeration;
+
+public class JournalPersistenceTest {
+
+    private static final String CLIENT = "client";
+    private static final String SERVER = "tcp://localhost:1883";
+
+    @Test
+    public void recoversAfterReopen() throws Exception {
+        File dir = createTempDir();
+        try {
+            JournalPersistence p = new JournalPersistence(dir.getPath());
+            p.open(CLIENT, SERVER);
+            p.put("s-1", data("h1", "p1"));
+            p.put("s-2", data("h2", "p2"));
+            p.put("s-1", data("h3", "p3"));
+            p.remove("s-2");
+            p.close();
+
+            p = new JournalPersistence(dir.getPath());
+            p.open(CLIENT, SERVER);
+            Assert.assertTrue(p.containsKey("s-1"));
+            Assert.assertFalse(p.containsKey("s-2"));
+
+            MqttPersistable d = p.get("s-1");
+            Assert.assertArrayEquals(bytes("h3"), copy(d.getHeaderBytes(),
+                    d.getHeaderOffset(), d.getHeaderLength()));
+            Assert.assertArrayEquals(bytes("p3"), copy(d.getPayloadBytes(),
+                    d.getPayloadOffset(), d.getPayloadLength()));
+            p.close();
+        } finally {
+            delete(dir);
+        }
+    }
+
+    @Test
+    public void compactsDeadRecords() throws Exception {
+        File dir = createTempDir();
+        try {
+            JournalPersistence p = new JournalPersistence(dir.getPath(), 256, 0);
+            p.open(CLIENT, SERVER);
+            p.put("kept", data("h", "p"));
+            for (int i = 0; i < 100; i++) {
+                p.put("s-" + i, data("header", "payload"));
+                p.remove("s-" + i);
+            }
+            Assert.assertTrue(p.getSegmentCount() <= 3);
+            Assert.assertTrue(p.containsKey("kept"));
+            p.close();
+
+            p = new JournalPersistence(dir.getPath(), 256, 0);
+            p.open(CLIENT, SERVER);
+            Enumeration keys = p.keys();
+            Assert.assertEquals("kept", keys.nextElement());
+            Assert.assertFalse(keys.hasMoreElements());
+            p.close();
+        } finally {
+            delete(dir);
+        }
+    }
+
+    private static MqttPersistable data(String header, String payload) {
+        byte[] h = bytes(header);
+        byte[] p = bytes(payload);
+        return new MqttPersistentData("", h, 0, h.length, p, 0, p.length);
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(PayloadDecoder.UTF_8);
+    }
+
+    private static byte[] copy(byte[] b, int offset, int length) {
+        byte[] copy = new byte[length];
+        System.arraycopy(b, offset, copy, 0, length);
+        return copy;
+    }
+
+    private static File createTempDir() throws IOException {
+        File f = File.createTempFile("journal", "");
+        if (!(f.delete() && f.mkdir())) {
+            throw new IOException("Failed to create " + f);
+        }
+        return f;
+    }
+
+    private static void delete(File f) {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File c : children) {
+                delete(c);
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        f.delete();
+    }
+}
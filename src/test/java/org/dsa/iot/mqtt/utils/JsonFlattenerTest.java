@@ -0,0 +1,70 @@
+package org.dsa.iot.mqtt.utils;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class JsonFlattenerTest {
+
+    @Test
+    public void flatten() {
+        String json = "{\"temp\": 21.5, \"ok\":true, \"name\":\"a\\\"b\","
+                + " \"pos\": {\"x\": 1, \"y\": [2, null]}}";
+        Map<String, String> values = flatten(json);
+        Assert.assertTrue(values != null);
+        Assert.assertEquals("NUMBER:21.5", values.get("temp"));
+        Assert.assertEquals("BOOL:true", values.get("ok"));
+        Assert.assertEquals("STRING:a\"b", values.get("name"));
+        Assert.assertEquals("NUMBER:1", values.get("pos/x"));
+        Assert.assertEquals("NUMBER:2", values.get("pos/y/0"));
+        Assert.assertEquals("NULL:null", values.get("pos/y/1"));
+        Assert.assertEquals(6, values.size());
+
+        values = flatten("[-0.5e+3, 10E2]");
+        Assert.assertEquals("NUMBER:-0.5e+3", values.get("0"));
+        Assert.assertEquals("NUMBER:10E2", values.get("1"));
+    }
+
+    @Test
+    public void malformed() {
+        Assert.assertNull(flatten("21.5"));
+        Assert.assertNull(flatten("{\"a\": 1"));
+        Assert.assertNull(flatten("{\"a\" 1}"));
+        Assert.assertNull(flatten("[1, 2] x"));
+        Assert.assertNull(flatten("{\"a\": \"\\u00zz\"}"));
+        Assert.assertNull(flatten("{\"a\": \"\\u00"));
+        Assert.assertNull(flatten("{\"a\": 1-2}"));
+        Assert.assertNull(flatten("[e]"));
+        Assert.assertNull(flatten("[01]"));
+        Assert.assertNull(flatten("[1.]"));
+        Assert.assertNull(flatten("[+1]"));
+    }
+
+    @Test
+    public void unicodeEscapes() {
+        Map<String, String> values = flatten("{\"a\": \"\\u0041b\"}");
+        Assert.assertEquals("STRING:Ab", values.get("a"));
+        byte[] bad = "x\\u12".getBytes(PayloadDecoder.UTF_8);
+        Assert.assertEquals("x\\u12",
+                JsonFlattener.decodeString(bad, 0, bad.length));
+    }
+
+    private static Map<String, String> flatten(String json) {
+        final Map<String, String> values = new LinkedHashMap<>();
+        byte[] bytes = json.getBytes(PayloadDecoder.UTF_8);
+        boolean ok = JsonFlattener.flatten(bytes, new JsonFlattener.Visitor() {
+            @Override
+            public void onValue(String path,
+                                byte[] buf,
+                                int start,
+                                int end,
+                                JsonFlattener.Kind kind) {
+                String raw = JsonFlattener.decodeString(buf, start, end);
+                values.put(path, kind + ":" + raw);
+            }
+        });
+        return ok ? values : null;
+    }
+}
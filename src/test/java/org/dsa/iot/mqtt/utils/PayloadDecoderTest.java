@@ -0,0 +1,53 @@
+package org.dsa.iot.mqtt.utils;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import static org.dsa.iot.mqtt.utils.PayloadDecoder.Mode;
+
+public class PayloadDecoderTest {
+
+    @Test
+    public void numbers() {
+        Assert.assertEquals(42, number("42"));
+        Assert.assertEquals(-7, number(" -7\n"));
+        Assert.assertEquals(21.5, number("21.5"));
+        Assert.assertEquals(0.1, number("0.1"));
+        Assert.assertEquals(1.5e3, number("1.5e3"));
+        Assert.assertEquals(12345678901L, number("12345678901"));
+        Assert.assertEquals(1700000000123456L, number("1700000000123456"));
+        Assert.assertEquals(-9007199254740993L, number("-9007199254740993"));
+        Assert.assertEquals(1e20, number("100000000000000000000"));
+        Assert.assertNull(number(""));
+        Assert.assertNull(number("-"));
+        Assert.assertNull(number("."));
+        Assert.assertNull(number("1.2.3"));
+        Assert.assertNull(number("12a"));
+        Assert.assertNull(number("1e3d"));
+        Assert.assertNull(number("10000000000000000f"));
+    }
+
+    @Test
+    public void booleans() {
+        Assert.assertEquals(true, PayloadDecoder.parseBool(bytes("TRUE")));
+        Assert.assertEquals(false, PayloadDecoder.parseBool(bytes("false ")));
+        Assert.assertEquals(true, PayloadDecoder.parseBool(bytes("1")));
+        Assert.assertNull(PayloadDecoder.parseBool(bytes("yes")));
+    }
+
+    @Test
+    public void classify() {
+        Assert.assertEquals(Mode.NUMBER, PayloadDecoder.classify(bytes("3.3")));
+        Assert.assertEquals(Mode.BOOL, PayloadDecoder.classify(bytes("false")));
+        Assert.assertEquals(Mode.STRING, PayloadDecoder.classify(bytes("on")));
+        Assert.assertEquals(Mode.STRING, PayloadDecoder.classify(bytes("")));
+    }
+
+    private static Object number(String s) {
+        return PayloadDecoder.parseNumber(bytes(s));
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(PayloadDecoder.UTF_8);
+    }
+}
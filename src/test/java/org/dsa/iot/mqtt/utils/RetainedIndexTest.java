@@ -0,0 +1,51 @@
+package org.dsa.iot.mqtt.utils;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.List;
+
+public class RetainedIndexTest {
+
+    @Test
+    public void matchesFilters() {
+        RetainedIndex index = new RetainedIndex();
+        index.put("a/b", new byte[] { 1 });
+        index.put("a/c", new byte[] { 2 });
+        index.put("a", new byte[] { 3 });
+        index.put("$SYS/a", new byte[] { 4 });
+
+        Assert.assertEquals(1, index.match("a/b").size());
+        Assert.assertEquals(2, index.match("a/+").size());
+        Assert.assertEquals(3, index.match("a/#").size());
+        List<String> all = index.match("#");
+        Assert.assertEquals(3, all.size());
+        Assert.assertFalse(all.contains("$SYS/a"));
+        Assert.assertEquals(1, index.match("$SYS/#").size());
+
+        index.put("a/b", new byte[0]);
+        Assert.assertNull(index.get("a/b"));
+        Assert.assertEquals(1, index.match("a/+").size());
+    }
+
+    @Test
+    public void restoresSnapshot() throws Exception {
+        File file = File.createTempFile("retained", ".idx");
+        try {
+            RetainedIndex index = new RetainedIndex();
+            index.put("a/b", new byte[] { 1, 2 });
+            index.put("c", new byte[] { 3 });
+            Assert.assertTrue(index.save(file));
+            Assert.assertFalse(index.save(file));
+
+            RetainedIndex restored = new RetainedIndex();
+            Assert.assertEquals(2, restored.load(file));
+            Assert.assertArrayEquals(new byte[] { 1, 2 }, restored.get("a/b"));
+            Assert.assertEquals(1, restored.match("a/#").size());
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package org.dsa.iot.mqtt.utils;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+public class SpoolFileTest {
+
+    @Test
+    public void compactsWithoutDraining() throws IOException {
+        File file = File.createTempFile("spool", ".dat");
+        SpoolFile spool = new SpoolFile(file);
+        try {
+            byte[] record = new byte[1000];
+            int next = 0;
+            int expected = 0;
+            for (; next < 100; next++) {
+                record[0] = (byte) next;
+                spool.append(record);
+            }
+            // Keep the spool non-empty the whole time
+            for (int i = 0; i < 10000; i++) {
+                record[0] = (byte) next++;
+                spool.append(record);
+                byte[] polled = spool.poll();
+                Assert.assertEquals((byte) expected++, polled[0]);
+                Assert.assertEquals(1000, polled.length);
+            }
+            Assert.assertEquals(100, spool.size());
+            Assert.assertTrue(spool.length() < 4 * 100 * 1004 + 64 * 1024);
+            Assert.assertTrue(file.length() < 4 * 100 * 1004 + 64 * 1024);
+
+            while (spool.size() > 0) {
+                Assert.assertEquals((byte) expected++, spool.poll()[0]);
+            }
+            Assert.assertNull(spool.poll());
+            Assert.assertEquals(next, expected);
+        } finally {
+            spool.close();
+        }
+    }
+}
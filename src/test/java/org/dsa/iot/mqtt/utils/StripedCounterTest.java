@@ -0,0 +1,41 @@
+package org.dsa.iot.mqtt.utils;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class StripedCounterTest {
+
+    @Test
+    public void sumsConcurrentIncrements() throws InterruptedException {
+        final StripedCounter counter = new StripedCounter(4);
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 10000; j++) {
+                        counter.increment();
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        Assert.assertEquals(80000, counter.sum());
+
+        counter.add(-5);
+        Assert.assertEquals(79995, counter.sum());
+        counter.reset();
+        Assert.assertEquals(0, counter.sum());
+    }
+
+    @Test
+    public void singleStripe() {
+        StripedCounter counter = new StripedCounter(1);
+        counter.add(3);
+        counter.increment();
+        Assert.assertEquals(4, counter.sum());
+    }
+}
@@ -0,0 +1,28 @@
+package org.dsa.iot.mqtt.utils;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TopicCacheTest {
+
+    @Test
+    public void evictsLeastRecentlyUsed() {
+        TopicCache<String> cache = new TopicCache<>(2, 1);
+        cache.put("a", "1");
+        cache.put("b", "2");
+        Assert.assertEquals("1", cache.get("a"));
+
+        cache.put("c", "3");
+        Assert.assertEquals("1", cache.get("a"));
+        Assert.assertNull(cache.get("b"));
+        Assert.assertEquals("3", cache.get("c"));
+        Assert.assertEquals(2, cache.size());
+
+        Assert.assertEquals(2, cache.values().size());
+        Assert.assertTrue(cache.values().contains("3"));
+
+        cache.clear();
+        Assert.assertNull(cache.get("a"));
+        Assert.assertEquals(0, cache.size());
+    }
+}
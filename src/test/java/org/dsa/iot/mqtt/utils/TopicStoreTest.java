@@ -0,0 +1,74 @@
+package org.dsa.iot.mqtt.utils;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.List;
+
+public class TopicStoreTest {
+
+    @Test
+    public void storesInlineAndLargePayloads() {
+        TopicStore store = new TopicStore();
+        byte[] small = "21.5".getBytes(PayloadDecoder.UTF_8);
+        byte[] full = "12345678".getBytes(PayloadDecoder.UTF_8);
+        byte[] large = "a larger payload".getBytes(PayloadDecoder.UTF_8);
+        store.put("a/b", small);
+        store.put("a/c", full);
+        store.put("a", large);
+        store.put("/d", new byte[0]);
+
+        Assert.assertEquals(4, store.size());
+        Assert.assertArrayEquals(small, store.get("a/b"));
+        Assert.assertArrayEquals(full, store.get("a/c"));
+        Assert.assertArrayEquals(large, store.get("a"));
+        Assert.assertArrayEquals(new byte[0], store.get("/d"));
+        Assert.assertNull(store.get("a/b/c"));
+
+        List<String> top = store.children(null);
+        Assert.assertEquals(2, top.size());
+        Assert.assertTrue(top.contains(""));
+        Assert.assertEquals(2, store.children("a").size());
+        Assert.assertEquals(1, store.children("").size());
+
+        store.put("a/b", large);
+        Assert.assertEquals(4, store.size());
+        Assert.assertArrayEquals(large, store.get("a/b"));
+    }
+
+    @Test
+    public void removesEmptyLevels() {
+        TopicStore store = new TopicStore();
+        store.put("a/b/c", new byte[] { 1 });
+        store.put("a", new byte[] { 2 });
+
+        Assert.assertArrayEquals(new byte[] { 1 }, store.remove("a/b/c"));
+        Assert.assertNull(store.remove("a/b/c"));
+        Assert.assertTrue(store.children("a").isEmpty());
+        Assert.assertTrue(store.contains("a"));
+        Assert.assertFalse(store.contains("a/b"));
+        Assert.assertEquals(1, store.size());
+    }
+
+    @Test
+    public void removesMatchingFilters() {
+        TopicStore store = new TopicStore();
+        store.put("a", new byte[] { 1 });
+        store.put("a/b", new byte[] { 2 });
+        store.put("a/c/d", new byte[] { 3 });
+        store.put("e/b", new byte[] { 4 });
+        store.put("$SYS/b", new byte[] { 5 });
+
+        Assert.assertEquals(2, store.removeMatching("+/b"));
+        Assert.assertTrue(store.contains("$SYS/b"));
+        Assert.assertFalse(store.children(null).contains("e"));
+
+        Assert.assertEquals(2, store.removeMatching("a/#"));
+        Assert.assertEquals(1, store.size());
+
+        store.put("f", new byte[] { 6 });
+        Assert.assertEquals(1, store.removeMatching("#"));
+        Assert.assertEquals(1, store.size());
+        Assert.assertTrue(store.contains("$SYS/b"));
+    }
+}
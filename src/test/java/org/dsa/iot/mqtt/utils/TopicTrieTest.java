@@ -0,0 +1,71 @@
+package org.dsa.iot.mqtt.utils;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.List;
+
+public class TopicTrieTest {
+
+    @Test
+    public void matchesWildcards() {
+        TopicTrie<String> trie = new TopicTrie<>();
+        trie.add("a/b", "exact");
+        trie.add("a/+", "plus");
+        trie.add("a/#", "hash");
+        trie.add("#", "all");
+
+        List<String> m = trie.match("a/b");
+        Assert.assertEquals(4, m.size());
+        m = trie.match("a");
+        Assert.assertTrue(m.contains("hash"));
+        Assert.assertFalse(m.contains("plus"));
+        m = trie.match("a/b/c");
+        Assert.assertEquals(2, m.size());
+        Assert.assertTrue(trie.match("$SYS/a").isEmpty());
+
+        Assert.assertTrue(trie.remove("#", "all"));
+        Assert.assertFalse(trie.remove("#", "all"));
+        Assert.assertTrue(trie.match("b").isEmpty());
+    }
+
+    @Test
+    public void checksCoverage() {
+        TopicTrie<String> trie = new TopicTrie<>();
+        trie.add("a/+/c", "1");
+        trie.add("a/b/c", "2");
+        trie.add("a/b/c", "3");
+        trie.add("x/#", "4");
+
+        Assert.assertTrue(trie.isCovered("a/b/c"));
+        Assert.assertFalse(trie.isCovered("a/+/c"));
+        Assert.assertTrue(trie.isCovered("x/y/+"));
+        Assert.assertTrue(trie.isCovered("x"));
+        Assert.assertFalse(trie.isCovered("x/#"));
+        Assert.assertTrue(trie.contains("a/b/c"));
+        Assert.assertFalse(trie.contains("a/b"));
+
+        List<String> covered = trie.coveredBy("a/#");
+        Assert.assertEquals(2, covered.size());
+        Assert.assertTrue(covered.contains("a/+/c"));
+        Assert.assertEquals(1, trie.coveredBy("a/+/c").size());
+    }
+
+    @Test
+    public void collectsCoveringValues() {
+        TopicTrie<String> trie = new TopicTrie<>();
+        trie.add("a/#", "telemetry");
+        trie.add("a/+/alarm", "alarms");
+        trie.add("a/b/alarm", "exact");
+
+        List<String> covering = trie.covering("a/b/alarm");
+        Assert.assertEquals(2, covering.size());
+        Assert.assertTrue(covering.contains("telemetry"));
+        Assert.assertTrue(covering.contains("alarms"));
+        Assert.assertEquals(1, trie.covering("a/+/alarm").size());
+        Assert.assertTrue(trie.covering("a/#").isEmpty());
+
+        Assert.assertEquals(1, trie.get("a/b/alarm").size());
+        Assert.assertTrue(trie.get("a/b").isEmpty());
+    }
+}